@@ -19,6 +19,7 @@ public class Main {
                         "put | get | exit | merge");
                 String command = scanner.nextLine();
                 if(command.equals("exit")) {
+                    masterTask.close();
                     break;
                 }
                 if(command.equals("put")) {
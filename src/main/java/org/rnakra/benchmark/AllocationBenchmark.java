@@ -0,0 +1,103 @@
+package org.rnakra.benchmark;
+
+import com.sun.management.ThreadMXBean;
+import org.rnakra.core.IndexLocation;
+import org.rnakra.core.KeyValueStoreImpl;
+import org.rnakra.core.StoreConfig;
+import org.rnakra.io.DataFile;
+import org.rnakra.io.FileHandleCache;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated per operation on the encode/decode hot path, with the allocation counter of the
+ * current thread. Keys and values are created up front, so only the allocations of the store are counted.
+ * Expected: appends allocate only the IndexLocation kept by the index, reads only the returned value.
+ *
+ * Usage: AllocationBenchmark [operations] [valueSize]
+ */
+public class AllocationBenchmark {
+    private static final int KEYS = 10000;
+    private static final ThreadMXBean THREAD_MX_BEAN = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        String[] keys = new String[KEYS];
+        String[] values = new String[KEYS];
+        Random random = new Random(42);
+        for(int i = 0; i < KEYS; i++) {
+            keys[i] = "user" + i;
+            char[] value = new char[valueSize];
+            for(int j = 0; j < valueSize; j++) {
+                value[j] = (char) ('a' + random.nextInt(26));
+            }
+            values[i] = new String(value);
+        }
+
+        System.out.println("operations=" + operations + " valueSize=" + valueSize);
+        System.out.printf("%-28s %16s%n", "operation", "bytes/op");
+        File directory = Files.createTempDirectory("kv-alloc").toFile();
+        try {
+            FileHandleCache handles = new FileHandleCache(FileHandleCache.DEFAULT_MAX_OPEN_FILES);
+            File file = new File(directory, "0.db");
+            file.createNewFile();
+            DataFile dataFile = new DataFile(file, 0, handles);
+            dataFile.setMaxFileSize(Long.MAX_VALUE);
+            dataFile.setWriteBuffer(ByteBuffer.allocateDirect(256 * 1024), StoreConfig.DurabilityMode.BUFFERED);
+            IndexLocation[] locations = new IndexLocation[KEYS];
+            report("DataFile.appendEntry", operations, i -> locations[i % KEYS] = dataFile.appendEntry(keys[i % KEYS], values[i % KEYS]));
+            dataFile.flush(false);
+            report("DataFile.readEntry", operations, i -> dataFile.readEntry(locations[i % KEYS]));
+            report("DataFile.readValue", operations, i -> dataFile.readValue(locations[i % KEYS]));
+
+            // change log disabled, its events are kept for watches and are not part of the codec
+            KeyValueStoreImpl keyValueStore = new KeyValueStoreImpl(new StoreConfig()
+                    .setDirectory(new File(directory, "store").getPath()).setChangeLogCapacity(0));
+            report("KeyValueStoreImpl.put", operations, i -> keyValueStore.put(keys[i % KEYS], values[i % KEYS]));
+            report("KeyValueStoreImpl.get", operations, i -> keyValueStore.get(keys[i % KEYS]));
+            keyValueStore.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+        // manager's cleanup scheduler keeps the JVM alive
+        System.exit(0);
+    }
+
+    private static void report(String name, int operations, Operation operation) throws Exception {
+        // warm up, so the hot path is compiled before it is measured
+        for(int i = 0; i < operations / 10; i++) {
+            operation.run(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < operations; i++) {
+            operation.run(i);
+        }
+        long allocated = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - before;
+        System.out.printf("%-28s %16.1f%n", name, (double) allocated / operations);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file: files) {
+                if(file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,101 @@
+package org.rnakra.benchmark;
+
+import org.rnakra.core.DataFilesManager;
+import org.rnakra.core.KeyValueStoreImpl;
+import org.rnakra.core.StoreConfig;
+import org.rnakra.io.DataFile;
+import org.rnakra.io.FileHandleCache;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures latency of get as the number of data files grows.
+ * For every file count a fresh directory is filled with small data files, the store is opened on top of it
+ * and random keys are read, with the file handle cache smaller than the file count so handles get reopened.
+ *
+ * Usage: GetLatencyBenchmark [maxOpenFiles] [readsPerRun]
+ */
+public class GetLatencyBenchmark {
+    private static final int[] FILE_COUNTS = {10, 100, 1000, 10000};
+    private static final int ENTRIES_PER_FILE = 10;
+
+    public static void main(String[] args) throws Exception {
+        int maxOpenFiles = args.length > 0 ? Integer.parseInt(args[0]) : FileHandleCache.DEFAULT_MAX_OPEN_FILES;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        System.out.println("maxOpenFiles=" + maxOpenFiles + " reads=" + reads);
+        System.out.printf("%10s %12s %12s %12s %12s %12s%n", "files", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "openFiles");
+        for(int fileCount: FILE_COUNTS) {
+            File directory = Files.createTempDirectory("kv-bench").toFile();
+            try {
+                writeDataFiles(directory, fileCount);
+                DataFilesManager dataFilesManager = new DataFilesManager(new StoreConfig().setDirectory(directory.getPath()).setMaxOpenFiles(maxOpenFiles));
+                KeyValueStoreImpl keyValueStore = new KeyValueStoreImpl(dataFilesManager);
+
+                Random random = new Random(42);
+                int keys = fileCount * ENTRIES_PER_FILE;
+                // warm up
+                for(int i = 0; i < reads / 10; i++) {
+                    keyValueStore.get("key-" + random.nextInt(keys));
+                }
+                long[] latencies = new long[reads];
+                for(int i = 0; i < reads; i++) {
+                    String key = "key-" + random.nextInt(keys);
+                    long start = System.nanoTime();
+                    String value = keyValueStore.get(key);
+                    latencies[i] = System.nanoTime() - start;
+                    if(value == null) {
+                        throw new IllegalStateException("Missing value for " + key);
+                    }
+                }
+                Arrays.sort(latencies);
+                double mean = Arrays.stream(latencies).average().orElse(0);
+                System.out.printf("%10d %12.2f %12.2f %12.2f %12.2f %12d%n", fileCount, mean / 1000.0,
+                        percentile(latencies, 0.50) / 1000.0, percentile(latencies, 0.99) / 1000.0,
+                        percentile(latencies, 0.999) / 1000.0, dataFilesManager.getFileHandleCache().getOpenFileCount());
+                for(DataFile dataFile: dataFilesManager.getDataFiles()) {
+                    dataFile.refresh();
+                }
+            } finally {
+                deleteDirectory(directory);
+            }
+        }
+        // manager's cleanup scheduler keeps the JVM alive
+        System.exit(0);
+    }
+
+    private static void writeDataFiles(File directory, int fileCount) throws Exception {
+        FileHandleCache handles = new FileHandleCache(16);
+        long base = System.currentTimeMillis();
+        int key = 0;
+        for(int i = 0; i < fileCount; i++) {
+            File file = new File(directory, (base + i) + ".db");
+            file.createNewFile();
+            DataFile dataFile = new DataFile(file, i, handles);
+            for(int j = 0; j < ENTRIES_PER_FILE; j++) {
+                dataFile.appendEntry("key-" + key, "value-" + key);
+                key++;
+            }
+            dataFile.seal();
+            dataFile.refresh();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file: files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
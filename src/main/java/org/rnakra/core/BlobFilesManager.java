@@ -0,0 +1,174 @@
+package org.rnakra.core;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BlobFilesManager stores values larger than the blob threshold, each in its own blob file under the data directory.
+ * Data files only hold a reference to the blob, so large values are never copied by merges.
+ *
+ * Blobs are reference counted by the index entries pointing to them, the counts are rebuilt from the index on startup.
+ * A blob whose count drops to zero is deleted after a grace period (for reads which already looked up the old
+ * index entry), and only once the current data file is synced, so the entry which replaced the reference is
+ * durable before the blob is gone. Blobs which are not referenced on startup (written but never committed, or
+ * released but not deleted yet) are deleted straight away.
+ */
+public class BlobFilesManager {
+    private static final String BLOB_DIRECTORY = "blobs";
+    private static final String BLOB_EXTENSION = ".blob";
+    private static final long GRACE_PERIOD_MILLIS = 2000;
+
+    private final File directory;
+    private final int blobThreshold;
+    private final DataFilesManager dataFilesManager;
+    private final AtomicLong nextBlobId;
+    // number of index entries pointing to the blob
+    private final ConcurrentHashMap<Long, Integer> references = new ConcurrentHashMap<>();
+    // blobs with no references left, mapped to the time they were released
+    private final ConcurrentHashMap<Long, Long> releasedBlobs = new ConcurrentHashMap<>();
+
+    public BlobFilesManager(DataFilesManager dataFilesManager) {
+        this.dataFilesManager = dataFilesManager;
+        this.blobThreshold = dataFilesManager.getConfig().getBlobThreshold();
+        this.directory = new File(dataFilesManager.getDirectory(), BLOB_DIRECTORY);
+        this.directory.mkdirs();
+
+        long maxBlobId = -1;
+        for(long blobId: listBlobIds()) {
+            maxBlobId = Math.max(maxBlobId, blobId);
+        }
+        this.nextBlobId = new AtomicLong(maxBlobId + 1);
+
+        // runs on the scheduler of the data files, which cancels it when the store is closed
+        dataFilesManager.scheduleAtFixedRate(this::cleanupReleasedBlobs, 5000); // 5s for now
+    }
+
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    /**
+     * Reads the stream, keeping values up to the threshold in memory and writing larger ones to a new blob file.
+     * The blob is synced before returning, it is not referenced till the staged value is put.
+     */
+    public StagedValue stage(InputStream value) throws IOException {
+        byte[] head = value.readNBytes(blobThreshold + 1);
+        if(head.length <= blobThreshold) {
+            return StagedValue.inline(head);
+        }
+        long blobId = nextBlobId.getAndIncrement();
+        File blobFile = getBlobFile(blobId);
+        try (FileOutputStream outputStream = new FileOutputStream(blobFile)) {
+            outputStream.write(head);
+            long length = head.length + value.transferTo(outputStream);
+            outputStream.getFD().sync();
+            return StagedValue.blob(blobId, length);
+        } catch (IOException e) {
+            blobFile.delete();
+            throw e;
+        }
+    }
+
+    public StagedValue stage(byte[] value) throws IOException {
+        return stage(new ByteArrayInputStream(value));
+    }
+
+    /**
+     * Deletes the blob of a staged value which could not be put.
+     */
+    public void discard(StagedValue value) {
+        if(value.isBlob() && !references.containsKey(value.getBlobId())) {
+            getBlobFile(value.getBlobId()).delete();
+        }
+    }
+
+    public InputStream open(long blobId) throws FileNotFoundException {
+        return new FileInputStream(getBlobFile(blobId));
+    }
+
+    public byte[] read(long blobId) throws IOException {
+        try (InputStream inputStream = open(blobId)) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    /**
+     * Called when an index entry starts pointing to the blob.
+     */
+    public void retain(long blobId) {
+        references.merge(blobId, 1, Integer::sum);
+        releasedBlobs.remove(blobId);
+    }
+
+    /**
+     * Called when an index entry pointing to the blob is replaced or removed.
+     */
+    public void release(long blobId) {
+        Integer count = references.computeIfPresent(blobId, (id, references) -> references > 1 ? references - 1 : null);
+        if(count == null) {
+            releasedBlobs.put(blobId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Deletes all the blobs which are not referenced, should be called once the index is loaded on startup.
+     */
+    public void deleteUnreferencedBlobs() {
+        for(long blobId: listBlobIds()) {
+            if(!references.containsKey(blobId)) {
+                getBlobFile(blobId).delete();
+            }
+        }
+        releasedBlobs.clear();
+    }
+
+    public void cleanupReleasedBlobs() {
+        long currentTime = System.currentTimeMillis();
+        List<Long> expired = new ArrayList<>();
+        for(Map.Entry<Long, Long> released: releasedBlobs.entrySet()) {
+            if(currentTime - released.getValue() > GRACE_PERIOD_MILLIS) {
+                expired.add(released.getKey());
+            }
+        }
+        if(expired.isEmpty()) {
+            return;
+        }
+        try {
+            // entries which dropped the references have to be on disk before the blobs are gone
+            dataFilesManager.getCurrentDataFile().flush(true);
+        } catch (IOException e) {
+            System.err.println("Error in syncing data file before deleting blobs: " + e.getMessage());
+            return;
+        }
+        for(long blobId: expired) {
+            if(!references.containsKey(blobId)) {
+                getBlobFile(blobId).delete();
+            }
+            releasedBlobs.remove(blobId);
+        }
+    }
+
+    private File getBlobFile(long blobId) {
+        return new File(directory, blobId + BLOB_EXTENSION);
+    }
+
+    private List<Long> listBlobIds() {
+        List<Long> blobIds = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(BLOB_EXTENSION));
+        if(files == null) {
+            return blobIds;
+        }
+        for(File file: files) {
+            try {
+                blobIds.add(Long.parseLong(file.getName().substring(0, file.getName().length() - BLOB_EXTENSION.length())));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring unknown file in blob directory: " + file.getName());
+            }
+        }
+        return blobIds;
+    }
+}
@@ -0,0 +1,23 @@
+package org.rnakra.core;
+
+/**
+ * Location of an entry whose value is stored in a blob file, the entry itself only holds the reference to the blob.
+ */
+public class BlobIndexLocation extends IndexLocation {
+    private final long blobId;
+    private final long blobLength;
+
+    public BlobIndexLocation(int fileId, long offset, long blobId, long blobLength) {
+        super(fileId, offset);
+        this.blobId = blobId;
+        this.blobLength = blobLength;
+    }
+
+    public long getBlobId() {
+        return blobId;
+    }
+
+    public long getBlobLength() {
+        return blobLength;
+    }
+}
@@ -0,0 +1,59 @@
+package org.rnakra.core;
+
+/**
+ * ChangeEvent is a put or delete committed to the store, as delivered to a {@link Watch}.
+ * Sequence numbers increase by one for every change, and the changes of a write batch get consecutive numbers.
+ */
+public class ChangeEvent {
+
+    public enum Type {
+        PUT,
+        DELETE
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final String key;
+    // null for deletes and for values stored in blob files
+    private final String value;
+    private final boolean blobValue;
+
+    ChangeEvent(long sequence, Type type, String key, String value, boolean blobValue) {
+        this.sequence = sequence;
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.blobValue = blobValue;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The new value of a put, null for deletes and for values stored in blob files
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return true if the value was put into a blob file, it is not carried by the event and can be read with getStream
+     */
+    public boolean isBlobValue() {
+        return blobValue;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + " " + key;
+    }
+}
@@ -0,0 +1,181 @@
+package org.rnakra.core;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * ChangeLog holds the most recent changes committed to the store, for watches to tail.
+ * Changes are recorded by the writer right after they are applied to the index, from the key and value it already
+ * has in hand, so delivering them takes no reads from the data files.
+ *
+ * The log is a ring of events bounded both in number of events and in bytes, the oldest events are dropped to make
+ * room. Watches do not buffer events of their own, each one is just a cursor into the ring, so a slow consumer does
+ * not hold on to memory: once its cursor falls off the ring the watch is cancelled and it has to catch up.
+ *
+ * Sequence numbers of a run are above the numbers of the previous runs, so a watch resumed with a sequence from
+ * before a restart is cancelled instead of silently missing or replaying changes. The log keeps a block of sequences
+ * reserved ahead of the next one in a sequence file, and starts after the reserved block on restart. It also starts no
+ * lower than the startup time in microseconds, which keeps the numbers increasing if the sequence file is lost, as
+ * long as the clock is not set back.
+ */
+public class ChangeLog {
+    // estimate of the memory taken by an event besides its strings
+    private static final int EVENT_OVERHEAD = 64;
+    // sequences reserved by a write of the sequence file
+    private static final long SEQUENCE_RESERVATION = 1_000_000;
+    public static final String SEQUENCE_FILE = "changelog.seq";
+
+    private final ChangeEvent[] events;
+    private final long maxBytes;
+    // guarded by this
+    private long oldestSequence;
+    private long nextSequence;
+    private long retainedBytes;
+    // null when the sequences are not persisted
+    private final File sequenceFile;
+    // sequences below this may have been handed out by this run, the sequence file holds it
+    private long reservedSequence;
+
+    /**
+     * @param capacity Most events held, 0 disables the log
+     * @param maxBytes Most memory held by the events, estimated from the size of their keys and values
+     */
+    public ChangeLog(int capacity, long maxBytes) {
+        this(capacity, maxBytes, null);
+    }
+
+    /**
+     * @param sequenceFile File the reserved sequences are persisted in, null to start from the clock on every run
+     */
+    public ChangeLog(int capacity, long maxBytes, File sequenceFile) {
+        this.events = new ChangeEvent[capacity];
+        this.maxBytes = maxBytes;
+        this.sequenceFile = sequenceFile;
+        this.nextSequence = Math.max(System.currentTimeMillis() * 1000, readReservedSequence());
+        this.oldestSequence = this.nextSequence;
+        reserve();
+    }
+
+    /**
+     * Records a put, the value is null if it was put into a blob file.
+     */
+    public void recordPut(String key, String value) {
+        record(ChangeEvent.Type.PUT, key, value, value == null);
+    }
+
+    public void recordDelete(String key) {
+        record(ChangeEvent.Type.DELETE, key, null, false);
+    }
+
+    private synchronized void record(ChangeEvent.Type type, String key, String value, boolean blobValue) {
+        if(events.length == 0) {
+            return;
+        }
+        ChangeEvent event = new ChangeEvent(nextSequence, type, key, value, blobValue);
+        while(nextSequence - oldestSequence >= events.length || (retainedBytes + size(event) > maxBytes && oldestSequence < nextSequence)) {
+            dropOldest();
+        }
+        events[slot(nextSequence)] = event;
+        retainedBytes += size(event);
+        nextSequence++;
+        if(nextSequence >= reservedSequence) {
+            reserve();
+        }
+        notifyAll();
+    }
+
+    private long readReservedSequence() {
+        if(sequenceFile == null || !sequenceFile.exists()) {
+            return 0;
+        }
+        try(DataInputStream in = new DataInputStream(new FileInputStream(sequenceFile))) {
+            return in.readLong();
+        } catch (IOException e) {
+            System.err.println("Error in reading sequence file " + sequenceFile.getName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Persists the next block of sequences before any of them is handed out. The file is replaced atomically, a
+     * failed write is retried on the next change.
+     */
+    private void reserve() {
+        if(sequenceFile == null) {
+            return;
+        }
+        long reserved = nextSequence + SEQUENCE_RESERVATION;
+        File tempFile = new File(sequenceFile.getPath() + ".tmp");
+        try {
+            try(RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+                out.setLength(0);
+                out.writeLong(reserved);
+                out.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), sequenceFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            reservedSequence = reserved;
+        } catch (IOException e) {
+            System.err.println("Error in writing sequence file " + sequenceFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void dropOldest() {
+        int slot = slot(oldestSequence);
+        retainedBytes -= size(events[slot]);
+        events[slot] = null;
+        oldestSequence++;
+    }
+
+    /**
+     * Starts watching the changes to keys with the prefix.
+     * @param prefix Prefix of the keys to watch, empty for all keys
+     * @param fromSequence Sequence of the first change to deliver, the next sequence of the last change seen when
+     *                     resuming, negative to start at the next change
+     * @throws WatchCancelledException if changes from fromSequence are no longer held, or fromSequence is past the next sequence
+     */
+    public synchronized Watch watch(String prefix, long fromSequence) throws WatchCancelledException {
+        long start = fromSequence < 0 ? nextSequence : fromSequence;
+        if(start < oldestSequence) {
+            throw new WatchCancelledException("Changes from sequence " + start + " are no longer held", oldestSequence);
+        }
+        // a sequence which was never issued, from another store or from before a restart with the clock set back
+        if(start > nextSequence) {
+            throw new WatchCancelledException("Changes from sequence " + start + " were never recorded, next sequence is " + nextSequence, oldestSequence);
+        }
+        return new Watch(this, prefix, start);
+    }
+
+    /**
+     * @return Sequence the next change will get
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * @return Sequence of the oldest change held, equal to the next sequence when no change is held
+     */
+    synchronized long getOldestSequence() {
+        return oldestSequence;
+    }
+
+    /**
+     * Should be called holding the lock of the log, with a sequence between the oldest and the next sequence.
+     */
+    ChangeEvent get(long sequence) {
+        return events[slot(sequence)];
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % events.length);
+    }
+
+    private static long size(ChangeEvent event) {
+        return EVENT_OVERHEAD + 2L * event.getKey().length() + (event.getValue() == null ? 0 : 2L * event.getValue().length());
+    }
+}
@@ -1,68 +1,163 @@
 package org.rnakra.core;
 
 import org.rnakra.io.DataFile;
+import org.rnakra.io.FileHandleCache;
+import org.rnakra.io.SparseIndex;
 import org.rnakra.listener.DataFileSizeListener;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
+/**
+ * DataFilesManager keeps track of all the data files of the store.
+ * Every data file gets an integer id when it is opened, and files are looked up by that id on every read.
+ * The list of files and the id lookup table are copy on write, mutations (which are rare: file rotation, merges
+ * and cleanup) take the write lock and publish fresh snapshots, while lookups just read the current snapshot
+ * without any locking.
+ * Data files can be spread over several data directories, new files are placed as per the placement policy and
+ * merged files holding old data can be moved to a cold directory. Files are still looked up by id only, so reads
+ * do not care which directory a file is in.
+ * In out of core index mode the sorted files written by compaction get their sparse index loaded on startup.
+ */
 public class DataFilesManager implements DataFileSizeListener {
 
     ReadWriteLock readWriteLock;
-    private final String defaultDirectory = "data"; // Default directory
-    private List<DataFile> dataFiles;
+    private final StoreConfig config;
+    private final String directory;
+    // sorted in ascending order by name, replaced on every mutation
+    private volatile List<DataFile> dataFiles = Collections.emptyList();
+    // indexed by file id, replaced on every mutation
+    private volatile DataFile[] dataFilesById = new DataFile[0];
+    private final AtomicInteger nextFileId = new AtomicInteger(0);
+    // data files are named after their creation time, kept increasing so names are unique across directories
+    private long lastFileTimestamp = 0;
+    // active and merged files rotate over the directories separately, so merges do not skew where the writes go
+    private int nextActiveDirectory = 0;
+    private int nextMergedDirectory = 0;
 
-    private DataFile currentDataFile;
+    private final FileHandleCache fileHandleCache;
+
+    private volatile DataFile currentDataFile;
 
     private ScheduledExecutorService scheduler;
+    // a scheduler shared by the stores of a MasterTask is shut down by it, only the tasks of this manager are cancelled
+    private boolean ownsScheduler;
+    private final List<ScheduledFuture<?>> scheduledTasks = new CopyOnWriteArrayList<>();
 
 
     public DataFilesManager() throws FileNotFoundException {
+        this(new StoreConfig());
+    }
+
+    public DataFilesManager(StoreConfig config) throws FileNotFoundException {
+        this(config, new FileHandleCache(config.getMaxOpenFiles()));
+    }
+
+    /**
+     * @param fileHandleCache Cache of open handles, shared by the stores which are bound by one open file limit
+     */
+    public DataFilesManager(StoreConfig config, FileHandleCache fileHandleCache) throws FileNotFoundException {
+        this(config, fileHandleCache, null);
+    }
+
+    /**
+     * @param scheduler Runs the background tasks of the store (cleanup, flushes), shared by the stores of a MasterTask,
+     *                  null to run them on a scheduler of this manager
+     */
+    public DataFilesManager(StoreConfig config, FileHandleCache fileHandleCache, ScheduledExecutorService scheduler) throws FileNotFoundException {
+        this.config = config;
+        this.directory = config.getDirectory();
+        this.readWriteLock = new ReentrantReadWriteLock();
+        this.fileHandleCache = fileHandleCache;
         try {
-            File directory = new File(defaultDirectory);
-
-            if(directory.exists() && directory.isDirectory() && directory.listFiles().length > 0) {
-                List<File> files = Arrays.stream(directory.listFiles()).filter(File::isFile).filter(file -> file.getName().endsWith(".db")).collect(Collectors.toList());
-                this.dataFiles = files.stream().map(file -> {
-                    try {
-                        return new DataFile(file);
-                    } catch (Exception e) {
-                        System.err.println("Error occurred in Creating File");
-                        e.printStackTrace();
+            List<File> existingFiles = new ArrayList<>();
+            for(String dataDirectory: getScannedDirectories()) {
+                File directoryFile = new File(dataDirectory);
+                directoryFile.mkdirs();
+                File[] directoryFiles = directoryFile.listFiles((dir, name) -> name.endsWith(".db"));
+                if(directoryFiles != null) {
+                    existingFiles.addAll(Arrays.asList(directoryFiles));
+                }
+            }
+            // files are loaded in order of their names, as the name defines the order of the writes, whichever directory they are in
+            existingFiles.sort(Comparator.comparing(File::getName));
+
+            List<DataFile> files = new ArrayList<>();
+            for(File file: existingFiles) {
+                try {
+                    DataFile dataFile = new DataFile(file, nextFileId.getAndIncrement(), fileHandleCache);
+                    // soft deleted files were already merged into a newer file, which was synced before they were marked
+                    if(dataFile.getFileState() == 1) {
+                        deleteFile(file);
+                        continue;
                     }
-                    return null;
-                }).filter(Objects::nonNull).collect(Collectors.toList());
+                    files.add(dataFile);
+                    lastFileTimestamp = Math.max(lastFileTimestamp, fileTimestamp(file.getName()));
+                } catch (Exception e) {
+                    System.err.println("Error occurred in Creating File");
+                    e.printStackTrace();
+                }
             }
-            if(this.dataFiles == null || this.dataFiles.isEmpty()) {
-                File file = new File(defaultDirectory, Instant.now().toEpochMilli() + ".db");
+            if(files.isEmpty()) {
+                File file = newDataFileLocation();
                 file.createNewFile();
-                DataFile dataFile = new DataFile(file);
-                this.currentDataFile = dataFile;
-                this.dataFiles.add(dataFile);
+                files.add(new DataFile(file, nextFileId.getAndIncrement(), fileHandleCache));
+            }
+            if(config.getIndexMode() == StoreConfig.IndexMode.OUT_OF_CORE) {
+                loadSparseIndexes(files);
             }
-            this.currentDataFile = this.dataFiles.get(this.dataFiles.size() - 1);
+            for(DataFile file: files) {
+                addDataFile(file);
+            }
+            this.currentDataFile = files.get(files.size() - 1);
+            // appends have to follow the last intact record, not a record torn by a crash
+            long tornBytes = this.currentDataFile.truncateTornTail();
+            if(tornBytes > 0) {
+                System.err.println("Truncated " + tornBytes + " torn bytes at the tail of file " + this.currentDataFile.getFileName());
+            } else if(tornBytes < 0) {
+                // appends behind a corrupted record would not be read back, they go to a new file and this one is kept as it is
+                System.err.println("File " + this.currentDataFile.getFileName() + " holds a corrupted record, appending to a new file");
+                File file = newDataFileLocation();
+                file.createNewFile();
+                this.currentDataFile = new DataFile(file, nextFileId.getAndIncrement(), fileHandleCache);
+                addDataFile(this.currentDataFile);
+            }
+            // direct buffer is allocated once and handed over from file to file on rotation
+            this.currentDataFile.setWriteBuffer(ByteBuffer.allocateDirect(config.getWriteBufferSize()), config.getDurabilityMode());
+            this.currentDataFile.setMaxFileSize(config.getMaxFileSize());
             // adding the listener
             this.currentDataFile.addDataFileSizeListener(this);
 
-            this.readWriteLock = new ReentrantReadWriteLock();
+            this.ownsScheduler = scheduler == null;
+            this.scheduler = ownsScheduler ? Executors.newScheduledThreadPool(1) : scheduler;
 
-            this.scheduler = Executors.newScheduledThreadPool(1);
-
-            scheduler.scheduleAtFixedRate(
+            scheduledTasks.add(this.scheduler.scheduleAtFixedRate(
                     this::cleanupSoftDeletedFiles,
                     5000, // 5s for now
                     5000, // 5s for now
                     java.util.concurrent.TimeUnit.MILLISECONDS
-            );
+            ));
+            if(config.getDurabilityMode() == StoreConfig.DurabilityMode.BUFFERED) {
+                scheduledTasks.add(this.scheduler.scheduleWithFixedDelay(
+                        this::flushCurrentDataFile,
+                        config.getFlushIntervalMillis(),
+                        config.getFlushIntervalMillis(),
+                        java.util.concurrent.TimeUnit.MILLISECONDS
+                ));
+            }
 
         } catch (Exception e) {
             System.out.println("DataFiles Manager Initilization Exception" + e.getMessage());
@@ -80,12 +175,11 @@ public class DataFilesManager implements DataFileSizeListener {
             if(dataFile != this.currentDataFile) {
                 return;
             }
-            File file = new File(defaultDirectory, Instant.now().toEpochMilli() + ".db");
-            DataFile newDataFile = new DataFile(file);
-            this.readWriteLock.writeLock().lock();
-            this.dataFiles.add(newDataFile);
-            this.readWriteLock.writeLock().unlock();
+            DataFile newDataFile = createDataFile(newDataFileLocation());
+            newDataFile.setWriteBuffer(dataFile.seal(), config.getDurabilityMode());
+            addDataFile(newDataFile);
             this.currentDataFile = newDataFile;
+            this.currentDataFile.setMaxFileSize(config.getMaxFileSize());
             // adding the listener
             this.currentDataFile.addDataFileSizeListener(this);
         } catch (FileNotFoundException e) {
@@ -97,62 +191,220 @@ public class DataFilesManager implements DataFileSizeListener {
         }
     }
 
+    /**
+     * Loads the sparse indexes of the sorted files. Sorted files are always older than the unsorted ones, whose keys
+     * are in the in memory index and hide the same keys in the sorted files, so only the oldest files up to the
+     * first one without a valid sparse index are taken as sorted. The ones after it (left behind after running in
+     * the other index mode) are read as unsorted, and get sorted again by compaction.
+     */
+    private void loadSparseIndexes(List<DataFile> files) {
+        // the last file becomes the current file, which is written to
+        for(int i = 0; i < files.size() - 1; i++) {
+            DataFile dataFile = files.get(i);
+            SparseIndex sparseIndex = SparseIndex.load(dataFile.getFile(), dataFile.length(), fileHandleCache);
+            if(sparseIndex == null) {
+                break;
+            }
+            dataFile.setSparseIndex(sparseIndex);
+        }
+    }
+
+    /**
+     * @return Location for a new active data file, in the data directory picked by the placement policy
+     */
+    public synchronized File newDataFileLocation() {
+        lastFileTimestamp = Math.max(Instant.now().toEpochMilli(), lastFileTimestamp + 1);
+        return new File(pickDataDirectory(nextActiveDirectory++), lastFileTimestamp + ".db");
+    }
+
+    /**
+     * @param newestSource Newer of the files being merged, which holds the most recent data of the merged file
+     * @return Location for a merged file, in the cold directory if the data of the merged files is old enough
+     * and in the data directory picked by the placement policy otherwise
+     */
+    public synchronized File mergedFileLocation(String fileName, DataFile newestSource) {
+        String coldDirectory = config.getColdDirectory();
+        if(coldDirectory != null && System.currentTimeMillis() - fileTimestamp(newestSource.getFileName()) > config.getColdFileAgeMillis()) {
+            return new File(coldDirectory, fileName);
+        }
+        return new File(pickDataDirectory(nextMergedDirectory++), fileName);
+    }
+
+    /**
+     * @param cursor Round robin position of the kind of file being placed
+     */
+    private String pickDataDirectory(int cursor) {
+        List<String> dataDirectories = config.getDataDirectories();
+        if(config.getPlacementPolicy() == StoreConfig.PlacementPolicy.LEAST_USED) {
+            Map<String, Long> usedBytes = new HashMap<>();
+            for(DataFile dataFile: this.dataFiles) {
+                // length on disk, the file lock is not taken as the writer can hold it while rotating into here
+                usedBytes.merge(dataFile.getFile().getParentFile().getPath(), dataFile.getFile().length(), Long::sum);
+            }
+            String leastUsed = dataDirectories.get(0);
+            for(String dataDirectory: dataDirectories) {
+                if(usedBytes.getOrDefault(new File(dataDirectory).getPath(), 0L) < usedBytes.getOrDefault(new File(leastUsed).getPath(), 0L)) {
+                    leastUsed = dataDirectory;
+                }
+            }
+            return leastUsed;
+        }
+        return dataDirectories.get(Math.floorMod(cursor, dataDirectories.size()));
+    }
+
+    /**
+     * @return All directories which can hold data files of the store
+     */
+    private List<String> getScannedDirectories() {
+        Set<String> directories = new LinkedHashSet<>();
+        directories.add(directory);
+        directories.addAll(config.getDataDirectories());
+        if(config.getColdDirectory() != null) {
+            directories.add(config.getColdDirectory());
+        }
+        return new ArrayList<>(directories);
+    }
+
+    /**
+     * @return Creation time of the file, the part of its name before the first dot
+     */
+    private static long fileTimestamp(String fileName) {
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Opens a data file with a fresh id, the file is not visible to merges or cleanup till it is added
+     * through {@link #addDataFile(DataFile)}.
+     */
+    public DataFile createDataFile(File file) throws IOException, NoSuchAlgorithmException {
+        file.createNewFile();
+        return new DataFile(file, nextFileId.getAndIncrement(), fileHandleCache);
+    }
+
+    /**
+     * Writes the buffered entries of the current file to disk, runs periodically in BUFFERED durability mode.
+     */
+    public void flushCurrentDataFile() {
+        try {
+            this.currentDataFile.flush(false);
+        } catch (IOException e) {
+            System.err.println("Error in flushing file: " + this.currentDataFile.getFileName() + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a background task of the store periodically on the scheduler of the store, it is cancelled on close.
+     */
+    public void scheduleAtFixedRate(Runnable task, long periodMillis) {
+        scheduledTasks.add(scheduler.scheduleAtFixedRate(task, periodMillis, periodMillis, java.util.concurrent.TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Flushes and syncs the current file and stops the background tasks.
+     */
+    public void close() throws IOException {
+        for(ScheduledFuture<?> task: scheduledTasks) {
+            task.cancel(false);
+        }
+        if(ownsScheduler) {
+            this.scheduler.shutdown();
+        }
+        this.currentDataFile.flush(true);
+    }
+
+    public StoreConfig getConfig() {
+        return config;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public FileHandleCache getFileHandleCache() {
+        return fileHandleCache;
+    }
+
     public List<DataFile> getDataFiles() {
         return dataFiles;
     }
 
     public void addDataFile(DataFile dataFile) {
         this.readWriteLock.writeLock().lock();
-        this.dataFiles.add(dataFile);
-        // sorted is ascending order by name
-        this.dataFiles.sort(Comparator.comparing(DataFile::getFileName));
-        this.readWriteLock.writeLock().unlock();
+        try {
+            List<DataFile> files = new ArrayList<>(this.dataFiles);
+            files.add(dataFile);
+            // sorted is ascending order by name
+            files.sort(Comparator.comparing(DataFile::getFileName));
+            DataFile[] filesById = this.dataFilesById;
+            if(dataFile.getFileId() >= filesById.length) {
+                filesById = Arrays.copyOf(filesById, Math.max(dataFile.getFileId() + 1, filesById.length * 2));
+            } else {
+                filesById = filesById.clone();
+            }
+            filesById[dataFile.getFileId()] = dataFile;
+            this.dataFilesById = filesById;
+            this.dataFiles = Collections.unmodifiableList(files);
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
     }
 
     public void removeDataFile(DataFile dataFile) {
         this.readWriteLock.writeLock().lock();
-        this.dataFiles.removeIf(file -> file.getFileName().equals(dataFile.getFileName()));
-        // sorted is ascending order by name
-        this.readWriteLock.writeLock().unlock();
+        try {
+            List<DataFile> files = new ArrayList<>(this.dataFiles);
+            files.removeIf(file -> file.getFileId() == dataFile.getFileId());
+            DataFile[] filesById = this.dataFilesById.clone();
+            if(dataFile.getFileId() < filesById.length) {
+                filesById[dataFile.getFileId()] = null;
+            }
+            this.dataFilesById = filesById;
+            this.dataFiles = Collections.unmodifiableList(files);
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
     }
 
     public List<DataFile> getFilesForMerging() {
-       readWriteLock.readLock().lock();
-       List<DataFile> files = this.dataFiles.stream().filter(dataFile -> dataFile.getFileState() == 0).collect(Collectors.toList());
-       readWriteLock.readLock().unlock();
-       return files;
-    }
-
-    public DataFile getDataFile(String fileName) {
-        this.readWriteLock.readLock().lock();
-        DataFile file = null;
-        for(DataFile dataFile: this.dataFiles) {
-            if(dataFile.getFileName().equals(fileName)) {
-                file = dataFile;
-                break;
-            }
-        }
-        if(file == null) {
-            System.out.println("File not found: " + fileName);
+        // the file currently being written to is never merged
+        DataFile current = this.currentDataFile;
+        return this.dataFiles.stream().filter(dataFile -> dataFile.getFileState() == 0 && dataFile != current).collect(Collectors.toList());
+    }
+
+    public DataFile getDataFile(int fileId) {
+        DataFile[] filesById = this.dataFilesById;
+        if(fileId < 0 || fileId >= filesById.length) {
+            return null;
         }
-        this.readWriteLock.readLock().unlock();
-        return file;
+        return filesById[fileId];
     }
 
     public void cleanupSoftDeletedFiles() {
-        this.readWriteLock.readLock().lock();
-        long currentTime = System.currentTimeMillis();
-
         for (DataFile file : dataFiles) {
             // If file is safe to delete and beyond the grace period
             if (file.getFile().exists() && (file.getFileState() == 1) && System.currentTimeMillis() - file.getFile().lastModified() > 2000) {
-                file.getFile().delete();
+                removeDataFile(file);
+                deleteFile(file.getFile());
                 // System.out.println("Deleted file: " + file.getFile().getName());
             }
 
         }
+    }
 
-        this.readWriteLock.readLock().unlock();
+    /**
+     * Deletes the data file from disk along with its sparse index if it has one.
+     */
+    private void deleteFile(File file) {
+        // deleted through the cache, so a concurrent open can not recreate the file
+        fileHandleCache.delete(file);
+        File sidecar = SparseIndex.sidecarFile(file);
+        if(sidecar.exists()) {
+            fileHandleCache.delete(sidecar);
+        }
     }
 
 }
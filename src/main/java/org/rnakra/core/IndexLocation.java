@@ -1,16 +1,17 @@
 package org.rnakra.core;
 
 public class IndexLocation  {
-    private final String fileName;
+    // id assigned to the data file by DataFilesManager, used for O(1) lookup of the file
+    private final int fileId;
     private final long offset;
 
-    public IndexLocation(String fileName, long offset) {
-        this.fileName = fileName;
+    public IndexLocation(int fileId, long offset) {
+        this.fileId = fileId;
         this.offset = offset;
     }
 
-    public String getFileName() {
-        return fileName;
+    public int getFileId() {
+        return fileId;
     }
 
     public long getOffset() {
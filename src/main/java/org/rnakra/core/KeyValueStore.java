@@ -1,10 +1,69 @@
 package org.rnakra.core;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
 
 public interface KeyValueStore {
     public void put(String key, String value) throws IOException, NoSuchAlgorithmException;
     public String get(String key) throws IOException;
+    public void delete(String key) throws IOException;
+
+    /**
+     * Streaming access to values, values above the blob threshold are stored in their own blob file and never
+     * held in memory as a whole.
+     */
+    public void put(String key, InputStream value) throws IOException;
+    public InputStream getStream(String key) throws IOException;
+
+    /**
+     * Reads the stream into a value ready to be put, writing it to a blob file if it is large. Lets the stream be
+     * consumed outside the writer, which then only writes the reference with {@link #put(String, StagedValue)}.
+     */
+    public StagedValue stage(InputStream value) throws IOException;
+    public void put(String key, StagedValue value) throws IOException;
+    /**
+     * Frees the blob of a staged value which is not going to be put.
+     */
+    public void discard(StagedValue value);
+
+    /**
+     * Applies all the puts and deletes of the batch atomically, with a single append to the data file.
+     * Concurrent reads see either all of the changes of the batch or none of them.
+     */
+    public void write(WriteBatch batch) throws IOException;
+
+    /**
+     * Sets the value of the key to newValue only if its current value is expected, null expected means absent
+     * and null newValue deletes the key. Atomic only when all writes of the store go through a single writer.
+     * @return true if the value was set
+     */
+    public boolean compareAndSet(String key, String expected, String newValue) throws IOException, NoSuchAlgorithmException;
+
+    /**
+     * Sets the value of the key only if the key is not present, checked against the index without reading the value.
+     * Atomic only when all writes of the store go through a single writer.
+     * @return true if the value was set
+     */
+    public boolean putIfAbsent(String key, String value) throws IOException, NoSuchAlgorithmException;
+
+    /**
+     * Adds delta to the value of the key stored as a decimal long, absent keys are treated as 0.
+     * Atomic only when all writes of the store go through a single writer.
+     * @return The value after the increment
+     * @throws NumberFormatException If the current value is not a long
+     */
+    public long increment(String key, long delta) throws IOException, NoSuchAlgorithmException;
+
+    /**
+     * Streams the puts and deletes committed from now on, or from fromSequence when resuming, to keys with the prefix.
+     * Only recent changes are held, see {@link ChangeLog}.
+     * @param fromSequence Sequence of the first change to deliver, negative to start at the next change
+     * @throws WatchCancelledException if changes from fromSequence are no longer held
+     */
+    public Watch watch(String prefix, long fromSequence) throws WatchCancelledException;
+
     public void compactAndMerge();
+    public boolean isCompactionInProgress();
+    public void close() throws IOException;
 }
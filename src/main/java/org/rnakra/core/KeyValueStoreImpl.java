@@ -2,17 +2,33 @@ package org.rnakra.core;
 
 import org.rnakra.io.DataFile;
 import org.rnakra.io.DataFile.Pair;
+import org.rnakra.io.FileHandleCache;
+import org.rnakra.io.Utf8;
 import org.rnakra.merger.CompactAndMerge;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * In out of core index mode the in memory index only holds the keys of the data files which are not sorted yet,
+ * deletes included as they have to hide the key in the older sorted files. A key which is not in the index is
+ * looked up in the sorted files, newest first, through their Bloom filters and sparse indexes.
+ */
 public class KeyValueStoreImpl implements KeyValueStore {
     private final DataFilesManager dataFileManager;
+    private final BlobFilesManager blobFilesManager;
+    private final ChangeLog changeLog;
+    private final boolean outOfCore;
 
     private enum COMPACT_AND_MERGE_STATE {
         IDLE,
@@ -22,26 +38,118 @@ public class KeyValueStoreImpl implements KeyValueStore {
     COMPACT_AND_MERGE_STATE compactAndMergeState = COMPACT_AND_MERGE_STATE.IDLE;
     // In memory index to keep track of the location of the key in the data file.
     private final ConcurrentHashMap<String, IndexLocation> memoryIndex;
+    // held exclusively while the index entries of a batch are published, so a lookup sees all of them or none
+    private final StampedLock batchLock = new StampedLock();
 
     public KeyValueStoreImpl() throws FileNotFoundException {
-        this.dataFileManager = new DataFilesManager();
+        this(new StoreConfig());
+    }
+
+    public KeyValueStoreImpl(StoreConfig config) throws FileNotFoundException {
+        this(new DataFilesManager(config));
+    }
+
+    /**
+     * @param fileHandleCache Cache of open handles shared with other stores
+     * @param scheduler Scheduler of the background tasks shared with other stores, not shut down on close
+     */
+    public KeyValueStoreImpl(StoreConfig config, FileHandleCache fileHandleCache, ScheduledExecutorService scheduler) throws FileNotFoundException {
+        this(new DataFilesManager(config, fileHandleCache, scheduler));
+    }
+
+    public KeyValueStoreImpl(DataFilesManager dataFileManager) {
+        this.dataFileManager = dataFileManager;
+        this.outOfCore = dataFileManager.getConfig().getIndexMode() == StoreConfig.IndexMode.OUT_OF_CORE;
+        this.blobFilesManager = new BlobFilesManager(dataFileManager);
         this.memoryIndex = new ConcurrentHashMap<String, IndexLocation>();
+        this.changeLog = new ChangeLog(dataFileManager.getConfig().getChangeLogCapacity(), dataFileManager.getConfig().getChangeLogMaxBytes(),
+                new File(dataFileManager.getDirectory(), ChangeLog.SEQUENCE_FILE));
         loadIndexes();
+        blobFilesManager.deleteUnreferencedBlobs();
     }
 
     public void put(String key, String value) throws IOException, NoSuchAlgorithmException {
 //        System.out.println("Putting key: " + key + " value: " + value);
+        if (Utf8.length(value) > blobFilesManager.getBlobThreshold()) {
+            put(key, blobFilesManager.stage(value.getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+        // encoded straight into the write buffer of the data file
         IndexLocation location = dataFileManager.getCurrentDataFile().appendEntry(key, value);
-        memoryIndex.put(key, location);
+        indexPut(key, location);
+        changeLog.recordPut(key, value);
+    }
+
+    public void put(String key, InputStream value) throws IOException {
+        put(key, stage(value));
+    }
+
+    public StagedValue stage(InputStream value) throws IOException {
+        return blobFilesManager.stage(value);
+    }
+
+    public void put(String key, StagedValue value) throws IOException {
+        IndexLocation location;
+        try {
+            if (value.isBlob()) {
+                location = dataFileManager.getCurrentDataFile().appendBlobReference(key, value.getBlobId(), value.getLength());
+            } else {
+                location = dataFileManager.getCurrentDataFile().appendEntry(key, value.getInlineValue());
+            }
+        } catch (IOException e) {
+            blobFilesManager.discard(value);
+            throw e;
+        }
+        indexPut(key, location);
+        changeLog.recordPut(key, value.isBlob() ? null : new String(value.getInlineValue(), StandardCharsets.UTF_8));
+    }
+
+    public void discard(StagedValue value) {
+        blobFilesManager.discard(value);
+    }
+
+    /**
+     * Points the key to the new location, keeping the references of the blobs up to date.
+     */
+    private void indexPut(String key, IndexLocation location) {
+        if (location instanceof BlobIndexLocation) {
+            blobFilesManager.retain(((BlobIndexLocation) location).getBlobId());
+        }
+        IndexLocation previous = memoryIndex.put(key, location);
+        if (previous instanceof BlobIndexLocation) {
+            blobFilesManager.release(((BlobIndexLocation) previous).getBlobId());
+        }
+    }
+
+    private void indexRemove(String key) {
+        IndexLocation previous = memoryIndex.remove(key);
+        if (previous instanceof BlobIndexLocation) {
+            blobFilesManager.release(((BlobIndexLocation) previous).getBlobId());
+        }
     }
 
     private void loadIndexes() {
         try {
             List<DataFile> files = dataFileManager.getDataFiles();
             for(DataFile file: files) {
+                // keys of sorted files stay on disk, the blobs they reference are held by the file
+                if(file.isSorted()) {
+                    for(long blobId: file.getSparseIndex().getBlobIds()) {
+                        blobFilesManager.retain(blobId);
+                    }
+                    continue;
+                }
                 List<DataFile.Entry> entries = file.readEntries();
                 for(DataFile.Entry entry: entries) {
-                    memoryIndex.put(entry.key, new IndexLocation(file.getFileName(), entry.offset));
+                    if(entry.isTombstone() && outOfCore) {
+                        indexPut(entry.key, new TombstoneLocation(file.getFileId(), entry.offset));
+                    } else if(entry.isTombstone()) {
+                        indexRemove(entry.key);
+                    } else if(entry.isBlobReference()) {
+                        indexPut(entry.key, new BlobIndexLocation(file.getFileId(), entry.offset, entry.blobId, entry.blobLength));
+                    } else {
+                        indexPut(entry.key, new IndexLocation(file.getFileId(), entry.offset));
+                    }
                 }
             }
         } catch (IOException ex) {
@@ -51,13 +159,222 @@ public class KeyValueStoreImpl implements KeyValueStore {
 
     public String get(String key) throws IOException {
 //        System.out.println("Getting key: " + key);
+        while (true) {
+            IndexLocation location = locate(key);
+            if (location == null) {
+                return outOfCore ? valueOf(findInSortedFiles(key)) : null;
+            }
+            if (location instanceof TombstoneLocation) {
+                return null;
+            }
+            if (location instanceof BlobIndexLocation) {
+                return new String(blobFilesManager.read(((BlobIndexLocation) location).getBlobId()), StandardCharsets.UTF_8);
+            }
+            DataFile dataFile = dataFileManager.getDataFile(location.getFileId());
+            // decoded straight from the data file, without an intermediate byte array
+            if (dataFile != null) {
+                return dataFile.readEntry(location);
+            }
+        }
+    }
+
+    public InputStream getStream(String key) throws IOException {
+        IndexLocation location = lookup(key);
+        if (location instanceof BlobIndexLocation) {
+            return blobFilesManager.open(((BlobIndexLocation) location).getBlobId());
+        }
+        if (location == null && outOfCore) {
+            DataFile.Entry entry = findInSortedFiles(key);
+            if (entry == null || entry.isTombstone()) {
+                return null;
+            }
+            return entry.isBlobReference() ? blobFilesManager.open(entry.blobId) : new ByteArrayInputStream(entry.valueBytes);
+        }
+        byte[] value = readValue(key);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    private byte[] readValue(String key) throws IOException {
+        while (true) {
+            IndexLocation location = locate(key);
+            if (location == null) {
+                if (!outOfCore) {
+                    return null;
+                }
+                DataFile.Entry entry = findInSortedFiles(key);
+                if (entry == null || entry.isTombstone()) {
+                    return null;
+                }
+                return entry.isBlobReference() ? blobFilesManager.read(entry.blobId) : entry.valueBytes;
+            }
+            if (location instanceof TombstoneLocation) {
+                return null;
+            }
+            if (location instanceof BlobIndexLocation) {
+                return blobFilesManager.read(((BlobIndexLocation) location).getBlobId());
+            }
+            DataFile dataFile = dataFileManager.getDataFile(location.getFileId());
+            if (dataFile != null) {
+                return dataFile.readValue(location);
+            }
+        }
+    }
 
+    /**
+     * @return Location of the key whose data file was present at the time of the lookup, null if the key is not present
+     */
+    private IndexLocation locate(String key) throws IOException {
+        IndexLocation location = lookup(key);
+        // file can be cleaned up after a merge, in between reading the index and looking up the file,
+        // in that case the index already points to the merged file
+        while (location != null && !(location instanceof BlobIndexLocation) && !(location instanceof TombstoneLocation)
+                && dataFileManager.getDataFile(location.getFileId()) == null) {
+            IndexLocation latest = lookup(key);
+            if (latest == location) {
+                throw new IOException("Data file not found for key: " + key);
+            }
+            location = latest;
+        }
+        return location;
+    }
+
+    /**
+     * Reads the index entry of the key, waiting if a batch is being published. Optimistic, so lookups do not write
+     * to shared state unless they overlap a batch.
+     */
+    private IndexLocation lookup(String key) {
+        long stamp = batchLock.tryOptimisticRead();
         IndexLocation location = memoryIndex.get(key);
-        if (location == null) {
+        if (!batchLock.validate(stamp)) {
+            stamp = batchLock.readLock();
+            try {
+                location = memoryIndex.get(key);
+            } finally {
+                batchLock.unlockRead(stamp);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * @return Entry of the key in the newest sorted file which holds it, null if none does
+     */
+    private DataFile.Entry findInSortedFiles(String key) throws IOException {
+        List<DataFile> files = dataFileManager.getDataFiles();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            DataFile file = files.get(i);
+            // soft deleted files are still read, the merged file replacing them may not be in this snapshot of the list
+            if (!file.isSorted()) {
+                continue;
+            }
+            DataFile.Entry entry = file.findEntry(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private String valueOf(DataFile.Entry entry) throws IOException {
+        if (entry == null || entry.isTombstone()) {
             return null;
         }
-        DataFile dataFile = dataFileManager.getDataFile(location.getFileName());
-        return dataFile.readEntry(location);
+        if (entry.isBlobReference()) {
+            return new String(blobFilesManager.read(entry.blobId), StandardCharsets.UTF_8);
+        }
+        return entry.getValue();
+    }
+
+    private boolean containsKey(String key) throws IOException {
+        IndexLocation location = memoryIndex.get(key);
+        if (location != null || !outOfCore) {
+            return location != null && !(location instanceof TombstoneLocation);
+        }
+        DataFile.Entry entry = findInSortedFiles(key);
+        return entry != null && !entry.isTombstone();
+    }
+
+    public void delete(String key) throws IOException {
+        if (!containsKey(key)) {
+            return;
+        }
+        TombstoneLocation location = dataFileManager.getCurrentDataFile().appendTombstone(key);
+        if (outOfCore) {
+            indexPut(key, location);
+        } else {
+            indexRemove(key);
+        }
+        changeLog.recordDelete(key);
+    }
+
+    public void write(WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // index is only touched once the whole batch is appended, a failed append leaves the index as it was
+        List<IndexLocation> locations = dataFileManager.getCurrentDataFile().appendBatch(batch);
+        List<WriteBatch.Operation> operations = batch.getOperations();
+        // watches see the changes of the batch together, with consecutive sequences, and readers see all of them or none
+        long stamp = batchLock.writeLock();
+        try {
+            synchronized (changeLog) {
+                for (int i = 0; i < operations.size(); i++) {
+                    WriteBatch.Operation operation = operations.get(i);
+                    if (operation.isDelete() && outOfCore) {
+                        indexPut(operation.getKey(), locations.get(i));
+                        changeLog.recordDelete(operation.getKey());
+                    } else if (operation.isDelete()) {
+                        indexRemove(operation.getKey());
+                        changeLog.recordDelete(operation.getKey());
+                    } else {
+                        indexPut(operation.getKey(), locations.get(i));
+                        changeLog.recordPut(operation.getKey(), operation.getValue());
+                    }
+                }
+            }
+        } finally {
+            batchLock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean compareAndSet(String key, String expected, String newValue) throws IOException, NoSuchAlgorithmException {
+        String current = get(key);
+        if (!Objects.equals(current, expected)) {
+            return false;
+        }
+        if (newValue == null) {
+            delete(key);
+        } else {
+            put(key, newValue);
+        }
+        return true;
+    }
+
+    public boolean putIfAbsent(String key, String value) throws IOException, NoSuchAlgorithmException {
+        if (containsKey(key)) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    public long increment(String key, long delta) throws IOException, NoSuchAlgorithmException {
+        String current = get(key);
+        long value = (current == null ? 0 : Long.parseLong(current)) + delta;
+        put(key, Long.toString(value));
+        return value;
+    }
+
+    public Watch watch(String prefix, long fromSequence) throws WatchCancelledException {
+        return changeLog.watch(prefix, fromSequence);
+    }
+
+    public void close() throws IOException {
+        dataFileManager.close();
+    }
+
+    public synchronized boolean isCompactionInProgress() {
+        return compactAndMergeState == COMPACT_AND_MERGE_STATE.IN_PROGRESS;
     }
 
     public void compactAndMerge() {
@@ -69,7 +386,13 @@ public class KeyValueStoreImpl implements KeyValueStore {
             compactAndMergeState = COMPACT_AND_MERGE_STATE.IN_PROGRESS;
         }
         List<DataFile> files = dataFileManager.getFilesForMerging();
-        if(files.size() > 1) {
+        DataFile unsorted = outOfCore ? files.stream().filter(file -> !file.isSorted()).findFirst().orElse(null) : null;
+        if(unsorted != null) {
+            // oldest unsorted file first, so sorted files always stay older than the ones whose keys are in memory
+            CompactAndMerge.sort(memoryIndex, unsorted, unsorted == files.get(0), dataFileManager, blobFilesManager);
+        } else if(outOfCore && files.size() > 1 && files.size() >= dataFileManager.getConfig().getMinFilesForCompaction()) {
+            CompactAndMerge.mergeSorted(memoryIndex, files.get(0), files.get(1), dataFileManager, blobFilesManager);
+        } else if(files.size() > 1 && files.size() >= dataFileManager.getConfig().getMinFilesForCompaction()) {
             // System.out.println("Merging files " + files.get(0).getFileName() + " and "
             //         + files.get(1).getFileName() + " into " + files.get(1).getFileName() + " and deleting "
             //         + " and " + files.get(0).getFileName() + " from disk");
@@ -0,0 +1,43 @@
+package org.rnakra.core;
+
+/**
+ * StagedValue is a streamed value which has been read and made ready to be put.
+ * Values up to the blob threshold are held in memory and stored inline in the data file, larger values have
+ * already been written to a blob file and only their reference is written when the value is put.
+ */
+public class StagedValue {
+    // null when the value is in a blob
+    private final byte[] inlineValue;
+    private final long blobId;
+    private final long length;
+
+    private StagedValue(byte[] inlineValue, long blobId, long length) {
+        this.inlineValue = inlineValue;
+        this.blobId = blobId;
+        this.length = length;
+    }
+
+    static StagedValue inline(byte[] value) {
+        return new StagedValue(value, -1, value.length);
+    }
+
+    static StagedValue blob(long blobId, long length) {
+        return new StagedValue(null, blobId, length);
+    }
+
+    public boolean isBlob() {
+        return inlineValue == null;
+    }
+
+    public byte[] getInlineValue() {
+        return inlineValue;
+    }
+
+    public long getBlobId() {
+        return blobId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
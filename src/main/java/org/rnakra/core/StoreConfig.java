@@ -0,0 +1,400 @@
+package org.rnakra.core;
+
+import org.rnakra.io.DataFile;
+import org.rnakra.io.FileHandleCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * StoreConfig holds the tunables of the store, every field has a default so only the ones which matter
+ * for a deployment need to be set.
+ */
+public class StoreConfig {
+
+    /**
+     * When the write buffer of the active data file is written to disk.
+     * BUFFERED: only when the buffer is full or the flush interval elapses, a put completes while its data is still in
+     *           the buffer, so a crash of the process (kill -9 included) loses the puts of up to the last flush
+     *           interval (100 ms by default), or of a full buffer. Opt in for throughput where that loss is acceptable
+     * WRITE: after every put, the data reaches the OS page cache before the put completes, the default
+     * SYNC: after every put followed by an fsync, the data reaches the disk before the put completes
+     */
+    public enum DurabilityMode {
+        BUFFERED,
+        WRITE,
+        SYNC
+    }
+
+    /**
+     * Which of the data directories a new data file is placed in.
+     * ROUND_ROBIN: each directory in turn
+     * LEAST_USED: the directory holding the fewest bytes of data files of the store
+     */
+    public enum PlacementPolicy {
+        ROUND_ROBIN,
+        LEAST_USED
+    }
+
+    /**
+     * When the store is compacted.
+     * AUTO: a merge is queued on a share of the writes, see the compaction trigger rate
+     * MANUAL: only when a merge is submitted explicitly
+     */
+    public enum CompactionPolicy {
+        AUTO,
+        MANUAL
+    }
+
+    /**
+     * What a submit does when the read or write queue of MasterTask is full, either way the future of a request
+     * which is not admitted fails with a RejectedExecutionException.
+     * REJECT: fail straight away
+     * TIMEOUT: wait up to the admission timeout for space in the queue, then fail
+     */
+    public enum OverloadPolicy {
+        REJECT,
+        TIMEOUT
+    }
+
+    /**
+     * Where the index of the keys is kept.
+     * IN_MEMORY: every key is held in the in memory index
+     * OUT_OF_CORE: only the keys of the files which are not sorted yet are held in memory, compaction rewrites the
+     * sealed files sorted by key with a sparse index and a Bloom filter, and gets find the other keys through those
+     */
+    public enum IndexMode {
+        IN_MEMORY,
+        OUT_OF_CORE
+    }
+
+    private String directory = "data";
+    // data files are spread over these, the directory above is used when empty
+    private List<String> dataDirectories = Collections.emptyList();
+    private PlacementPolicy placementPolicy = PlacementPolicy.ROUND_ROBIN;
+    // merged files whose data is older than the cold file age are written here, null keeps them in the data directories
+    private String coldDirectory = null;
+    private long coldFileAgeMillis = 60 * 60 * 1000; // 1 hour
+    private int maxOpenFiles = FileHandleCache.DEFAULT_MAX_OPEN_FILES;
+    // the active data file is rotated once it grows beyond this
+    private long maxFileSize = DataFile.MAX_FILE_SIZE;
+    private CompactionPolicy compactionPolicy = CompactionPolicy.AUTO;
+    // share of the writes which queue a merge in AUTO compaction
+    private double compactionTriggerRate = 0.01;
+    // a merge only runs once there are at least this many sealed files
+    private int minFilesForCompaction = 2;
+    private int writeBufferSize = 256 * 1024; // 256 KB
+    private long flushIntervalMillis = 100;
+    private DurabilityMode durabilityMode = DurabilityMode.WRITE;
+    // values larger than this are stored in their own blob file
+    private int blobThreshold = 64 * 1024; // 64 KB
+    private int maxQueuedReads = 10000;
+    private int maxQueuedWrites = 10000;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+    private long admissionTimeoutMillis = 100;
+    // requests still queued after their deadline fail with a TimeoutException, 0 means no deadline
+    private long readDeadlineMillis = 0;
+    private long writeDeadlineMillis = 0;
+    // compaction waits while more reads than this are queued
+    private int maxQueuedReadsForCompaction = 16;
+    // recent changes held for watches, bounded by count and by estimated bytes
+    private int changeLogCapacity = 65536;
+    private long changeLogMaxBytes = 64 * 1024 * 1024; // 64 MB
+    private IndexMode indexMode = IndexMode.IN_MEMORY;
+    // size of the Bloom filter of a sorted file, about 1% false positives at 10 bits per key
+    private int bloomFilterBitsPerKey = 10;
+    // a sorted file has a sparse index entry every this many bytes, which is the most a get reads from the file
+    private int sparseIndexInterval = 4096;
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public StoreConfig setDirectory(String directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * @return Directories new data files are placed in
+     */
+    public List<String> getDataDirectories() {
+        return dataDirectories.isEmpty() ? Collections.singletonList(directory) : dataDirectories;
+    }
+
+    /**
+     * Spreads the data files over the directories, for instance one per disk. The directory set with
+     * {@link #setDirectory(String)} still holds the blobs and namespaces, and its data files are still read.
+     */
+    public StoreConfig setDataDirectories(List<String> dataDirectories) {
+        this.dataDirectories = new ArrayList<>(dataDirectories);
+        return this;
+    }
+
+    public PlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    public StoreConfig setPlacementPolicy(PlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+        return this;
+    }
+
+    public String getColdDirectory() {
+        return coldDirectory;
+    }
+
+    public StoreConfig setColdDirectory(String coldDirectory) {
+        this.coldDirectory = coldDirectory;
+        return this;
+    }
+
+    public long getColdFileAgeMillis() {
+        return coldFileAgeMillis;
+    }
+
+    public StoreConfig setColdFileAgeMillis(long coldFileAgeMillis) {
+        this.coldFileAgeMillis = coldFileAgeMillis;
+        return this;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public StoreConfig setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+        return this;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public StoreConfig setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    public CompactionPolicy getCompactionPolicy() {
+        return compactionPolicy;
+    }
+
+    public StoreConfig setCompactionPolicy(CompactionPolicy compactionPolicy) {
+        this.compactionPolicy = compactionPolicy;
+        return this;
+    }
+
+    public double getCompactionTriggerRate() {
+        return compactionTriggerRate;
+    }
+
+    public StoreConfig setCompactionTriggerRate(double compactionTriggerRate) {
+        this.compactionTriggerRate = compactionTriggerRate;
+        return this;
+    }
+
+    public int getMinFilesForCompaction() {
+        return minFilesForCompaction;
+    }
+
+    public StoreConfig setMinFilesForCompaction(int minFilesForCompaction) {
+        this.minFilesForCompaction = minFilesForCompaction;
+        return this;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public StoreConfig setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public StoreConfig setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    public StoreConfig setBlobThreshold(int blobThreshold) {
+        this.blobThreshold = blobThreshold;
+        return this;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public StoreConfig setDurabilityMode(DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+        return this;
+    }
+
+    public int getMaxQueuedReads() {
+        return maxQueuedReads;
+    }
+
+    public StoreConfig setMaxQueuedReads(int maxQueuedReads) {
+        this.maxQueuedReads = maxQueuedReads;
+        return this;
+    }
+
+    public int getMaxQueuedWrites() {
+        return maxQueuedWrites;
+    }
+
+    public StoreConfig setMaxQueuedWrites(int maxQueuedWrites) {
+        this.maxQueuedWrites = maxQueuedWrites;
+        return this;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public StoreConfig setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+        return this;
+    }
+
+    public long getAdmissionTimeoutMillis() {
+        return admissionTimeoutMillis;
+    }
+
+    public StoreConfig setAdmissionTimeoutMillis(long admissionTimeoutMillis) {
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        return this;
+    }
+
+    public long getReadDeadlineMillis() {
+        return readDeadlineMillis;
+    }
+
+    public StoreConfig setReadDeadlineMillis(long readDeadlineMillis) {
+        this.readDeadlineMillis = readDeadlineMillis;
+        return this;
+    }
+
+    public long getWriteDeadlineMillis() {
+        return writeDeadlineMillis;
+    }
+
+    public StoreConfig setWriteDeadlineMillis(long writeDeadlineMillis) {
+        this.writeDeadlineMillis = writeDeadlineMillis;
+        return this;
+    }
+
+    public int getMaxQueuedReadsForCompaction() {
+        return maxQueuedReadsForCompaction;
+    }
+
+    public StoreConfig setMaxQueuedReadsForCompaction(int maxQueuedReadsForCompaction) {
+        this.maxQueuedReadsForCompaction = maxQueuedReadsForCompaction;
+        return this;
+    }
+
+    public int getChangeLogCapacity() {
+        return changeLogCapacity;
+    }
+
+    public StoreConfig setChangeLogCapacity(int changeLogCapacity) {
+        this.changeLogCapacity = changeLogCapacity;
+        return this;
+    }
+
+    public long getChangeLogMaxBytes() {
+        return changeLogMaxBytes;
+    }
+
+    public StoreConfig setChangeLogMaxBytes(long changeLogMaxBytes) {
+        this.changeLogMaxBytes = changeLogMaxBytes;
+        return this;
+    }
+
+    public IndexMode getIndexMode() {
+        return indexMode;
+    }
+
+    public StoreConfig setIndexMode(IndexMode indexMode) {
+        this.indexMode = indexMode;
+        return this;
+    }
+
+    public int getBloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
+    public StoreConfig setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        return this;
+    }
+
+    public int getSparseIndexInterval() {
+        return sparseIndexInterval;
+    }
+
+    public StoreConfig setSparseIndexInterval(int sparseIndexInterval) {
+        this.sparseIndexInterval = sparseIndexInterval;
+        return this;
+    }
+
+    /**
+     * @return A copy of the config with the subdirectory appended to all of its directories
+     */
+    public StoreConfig withSubdirectory(String subdirectory) {
+        StoreConfig copy = copy();
+        copy.directory = new File(directory, subdirectory).getPath();
+        List<String> directories = new ArrayList<>();
+        for(String dataDirectory: dataDirectories) {
+            directories.add(new File(dataDirectory, subdirectory).getPath());
+        }
+        copy.dataDirectories = directories;
+        copy.coldDirectory = coldDirectory == null ? null : new File(coldDirectory, subdirectory).getPath();
+        return copy;
+    }
+
+    /**
+     * @return A config with the same values, which can be changed without affecting this one
+     */
+    public StoreConfig copy() {
+        StoreConfig copy = new StoreConfig();
+        copy.directory = directory;
+        copy.dataDirectories = dataDirectories;
+        copy.placementPolicy = placementPolicy;
+        copy.coldDirectory = coldDirectory;
+        copy.coldFileAgeMillis = coldFileAgeMillis;
+        copy.maxOpenFiles = maxOpenFiles;
+        copy.maxFileSize = maxFileSize;
+        copy.compactionPolicy = compactionPolicy;
+        copy.compactionTriggerRate = compactionTriggerRate;
+        copy.minFilesForCompaction = minFilesForCompaction;
+        copy.writeBufferSize = writeBufferSize;
+        copy.flushIntervalMillis = flushIntervalMillis;
+        copy.durabilityMode = durabilityMode;
+        copy.blobThreshold = blobThreshold;
+        copy.maxQueuedReads = maxQueuedReads;
+        copy.maxQueuedWrites = maxQueuedWrites;
+        copy.overloadPolicy = overloadPolicy;
+        copy.admissionTimeoutMillis = admissionTimeoutMillis;
+        copy.readDeadlineMillis = readDeadlineMillis;
+        copy.writeDeadlineMillis = writeDeadlineMillis;
+        copy.maxQueuedReadsForCompaction = maxQueuedReadsForCompaction;
+        copy.changeLogCapacity = changeLogCapacity;
+        copy.changeLogMaxBytes = changeLogMaxBytes;
+        copy.indexMode = indexMode;
+        copy.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        copy.sparseIndexInterval = sparseIndexInterval;
+        return copy;
+    }
+}
@@ -0,0 +1,12 @@
+package org.rnakra.core;
+
+/**
+ * Location of the delete of a key. Only kept in the index in out of core index mode, where the key can still be
+ * present in an older sorted file which is not in the index, and the delete has to hide it.
+ */
+public class TombstoneLocation extends IndexLocation {
+
+    public TombstoneLocation(int fileId, long offset) {
+        super(fileId, offset);
+    }
+}
@@ -0,0 +1,91 @@
+package org.rnakra.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch delivers the changes to the keys with a prefix, in commit order, by tailing the {@link ChangeLog}.
+ * A watch is used by one consumer thread at a time. After a reconnect, a new watch started from the sequence
+ * following the last change seen picks up where the old one left off.
+ */
+public class Watch implements AutoCloseable {
+    private final ChangeLog changeLog;
+    private final String prefix;
+    // sequence of the next change to look at, guarded by the lock of the change log
+    private long cursor;
+    private boolean closed = false;
+
+    Watch(ChangeLog changeLog, String prefix, long fromSequence) {
+        this.changeLog = changeLog;
+        this.prefix = prefix;
+        this.cursor = fromSequence;
+    }
+
+    /**
+     * Waits up to the timeout for the next change to a watched key.
+     * @return The change, null if there was none within the timeout or the watch is closed
+     * @throws WatchCancelledException if the consumer fell behind and the next changes are no longer held
+     */
+    public ChangeEvent poll(long timeout, TimeUnit unit) throws WatchCancelledException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (changeLog) {
+            while(!closed) {
+                if(cursor < changeLog.getOldestSequence()) {
+                    throw new WatchCancelledException("Watch fell behind, changes from sequence " + cursor
+                            + " are no longer held", changeLog.getOldestSequence());
+                }
+                while(cursor < changeLog.getNextSequence()) {
+                    ChangeEvent event = changeLog.get(cursor++);
+                    if(event.getKey().startsWith(prefix)) {
+                        return event;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(changeLog, remaining);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the next change to a watched key.
+     * @return The change, null if the watch is closed
+     * @throws WatchCancelledException if the consumer fell behind and the next changes are no longer held
+     */
+    public ChangeEvent take() throws WatchCancelledException, InterruptedException {
+        while(true) {
+            ChangeEvent event = poll(1, TimeUnit.MINUTES);
+            if(event != null || isClosed()) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * @return Sequence to resume from after the last change delivered
+     */
+    public long getNextSequence() {
+        synchronized (changeLog) {
+            return cursor;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (changeLog) {
+            return closed;
+        }
+    }
+
+    /**
+     * Stops the watch, a consumer waiting in poll or take returns null.
+     */
+    @Override
+    public void close() {
+        synchronized (changeLog) {
+            closed = true;
+            changeLog.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.rnakra.core;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a watch can not deliver the changes it was asked for, because they are no longer held by the change
+ * log: the watch started from a sequence which was dropped (or is from before a restart) or was never issued, or its
+ * consumer fell behind by more than the capacity of the change log.
+ * The consumer has to read the keys it tracks again before watching from {@link #getNextSequence()}.
+ */
+public class WatchCancelledException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final long nextSequence;
+
+    public WatchCancelledException(String message, long nextSequence) {
+        super(message);
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * @return Sequence of the oldest change still held by the change log
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+}
@@ -0,0 +1,66 @@
+package org.rnakra.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WriteBatch is a group of puts and deletes which are applied atomically.
+ * The whole batch is written as a single checksummed record in the data file, so after a crash either all of
+ * its operations are recovered or none of them are, and concurrent reads see either all of its changes or none.
+ */
+public class WriteBatch {
+
+    public static class Operation {
+        private final String key;
+        // null for deletes
+        private final String value;
+
+        Operation(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public boolean isDelete() {
+            return value == null;
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    public WriteBatch put(String key, String value) {
+        if(key == null || value == null) {
+            throw new IllegalArgumentException("Key and value of a put can not be null");
+        }
+        operations.add(new Operation(key, value));
+        return this;
+    }
+
+    public WriteBatch delete(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("Key of a delete can not be null");
+        }
+        operations.add(new Operation(key, null));
+        return this;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+}
@@ -0,0 +1,94 @@
+package org.rnakra.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * BloomFilter tells whether a key may be present in a sorted data file, so gets skip the files which can not
+ * hold the key without reading them. The bit positions are derived from a 64 bit hash of the characters of the
+ * key (double hashing), which is stable across runs as the filter is persisted.
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final int numHashes;
+
+    public BloomFilter(long expectedKeys, int bitsPerKey) {
+        long numBits = Math.max(64, expectedKeys * bitsPerKey);
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (numBits + 63) / 64)];
+        // ln(2) * bits per key hashes gives the lowest false positive rate
+        this.numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        int hash1 = (int) hash;
+        // odd, so the probes never collapse onto a single bit
+        int hash2 = (int) (hash >>> 32) | 1;
+        long numBits = (long) bits.length * 64;
+        for(int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + (long) i * hash2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the key was definitely not added, true if it may have been
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32) | 1;
+        long numBits = (long) bits.length * 64;
+        for(int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + (long) i * hash2, numBits);
+            if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(bits.length);
+        for(long word: bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter read(DataInputStream in) throws IOException {
+        int numHashes = in.readInt();
+        int length = in.readInt();
+        if(numHashes < 1 || length < 1) {
+            throw new IOException("Invalid Bloom filter");
+        }
+        long[] bits = new long[length];
+        for(int i = 0; i < length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+
+    /**
+     * FNV-1a over the characters followed by the finalizer of MurmurHash3, so both halves are well mixed.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
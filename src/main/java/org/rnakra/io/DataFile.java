@@ -1,17 +1,66 @@
 package org.rnakra.io;
+import org.rnakra.core.BlobIndexLocation;
 import org.rnakra.core.DataFileHeader;
 import org.rnakra.core.IndexLocation;
+import org.rnakra.core.StoreConfig.DurabilityMode;
+import org.rnakra.core.TombstoneLocation;
+import org.rnakra.core.WriteBatch;
 import org.rnakra.listener.DataFileSizeListener;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-
-// TODO: Maintain instances of ReadFile and WriteFile or some optimization around em
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * DataFile is a single append only log file of the store.
+ * ENTRY STRUCTURE
+ * 0 - 3: Key size
+ * 4 - 7: Value size
+ * key bytes followed by value bytes
+ * Value size of TOMBSTONE marks a delete of the key, and has no value bytes.
+ * Value size of BLOB_REFERENCE marks a value stored in a blob file, the value bytes are the blob id (8 bytes)
+ * followed by the length of the blob (8 bytes).
+ *
+ * BATCH STRUCTURE
+ * 0 - 3: BATCH_MARKER (in place of the key size)
+ * 4 - 7: Payload size
+ * 8 - 11: CRC32 of the payload
+ * 12 - 15: Number of entries
+ * payload: entries of the batch, one after the other in the entry structure
+ * A batch with a payload which is cut short or does not match its checksum is dropped as a whole while reading.
+ *
+ * Appends are encoded into a write buffer and written to disk in large chunks, on the file offsets which are
+ * multiple of FLUSH_ALIGNMENT when the buffer fills up, and completely when the flush interval elapses or after
+ * every put depending on the durability mode. Entries which are still in the buffer are served from the buffer.
+ * The header (and its checksum) is only written when the file is created and when it is sealed.
+ * Files written by compaction in out of core index mode hold every key once, in ascending order, and have a
+ * {@link SparseIndex} through which a key is found without the in memory index.
+ */
 public class DataFile extends DataFileHeader {
    public static final int MAX_FILE_SIZE = 1000000; // 1 MB
+   private static final int ENTRY_HEADER_SIZE = 8; // Key size + Value size
+   private static final int BATCH_HEADER_SIZE = 16; // Marker + Payload size + Checksum + Number of entries
+   private static final int BATCH_MARKER = -1;
+   private static final int TOMBSTONE = -1;
+   private static final int BLOB_REFERENCE = -2;
+   private static final int BLOB_REFERENCE_SIZE = 16; // Blob id + Blob length
+   private static final int FLUSH_ALIGNMENT = 4096;
+   // bytes read at the offset of an entry on a get, so small entries take a single read
+   private static final int SPECULATIVE_READ_SIZE = 1024;
+   // the read buffer of a thread grows to fit the largest entry it has read, entries larger than this get their own buffer
+   private static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+   // reused by all the gets of the thread, so reading an entry allocates nothing but the returned value
+   private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SPECULATIVE_READ_SIZE));
 
 
     public static class Pair {
@@ -25,44 +74,139 @@ public class DataFile extends DataFileHeader {
 
     public static class Entry {
         public String key;
-        public String value;
+        // raw value, null for deletes and for values stored in blob files
+        public byte[] valueBytes;
         public long offset;
-        Entry(String key, String value, long offset) {
+        // blob holding the value, -1 when the value is stored in the entry itself
+        public long blobId = -1;
+        public long blobLength;
+        Entry(String key, byte[] valueBytes, long offset) {
             this.key = key;
-            this.value = value;
+            this.valueBytes = valueBytes;
             this.offset = offset;
         }
+
+        public String getValue() {
+            return valueBytes == null ? null : new String(valueBytes, StandardCharsets.UTF_8);
+        }
+
+        public boolean isTombstone() {
+            return valueBytes == null && blobId < 0;
+        }
+
+        public boolean isBlobReference() {
+            return blobId >= 0;
+        }
     }
 
-    private File file;
-    private RandomAccessFile storeFile;
+    private final File file;
+    private final int fileId;
+    // Handles are not held by the file, they are borrowed from the cache for the duration of each operation
+    private final FileHandleCache handles;
 
     private List<DataFileSizeListener> dataFileSizeListeners;
 
     DataFileHeader dataFileHeader;
 
-    public DataFile(String fileName) throws IOException, NoSuchAlgorithmException {
-        this.file = new File(fileName); // Default file path
-        this.storeFile = new RandomAccessFile(this.file, "rw");
+    // length of the file including the entries still in the write buffer
+    private long length;
+    // length of the file which has been written to disk, write buffer holds the bytes from here till length
+    private long flushedLength;
+    // null when the file is not written to (sealed files), appends then go straight to disk
+    private ByteBuffer writeBuffer;
+    // view of the write buffer for reads, so reads do not move the position of the buffer or duplicate it each time
+    private ByteBuffer writeBufferView;
+    private DurabilityMode durabilityMode = DurabilityMode.BUFFERED;
+    // the size listeners are notified once the file grows beyond this
+    private long maxFileSize = MAX_FILE_SIZE;
+    // index of the keys of a sorted file, null for files in the order of the writes
+    private volatile SparseIndex sparseIndex;
+    // blobs of the entries of a sorted file which a newer sorted file replaced, their references are already released
+    private final Map<Long, Integer> supersededBlobIds = new HashMap<>();
+
+    public DataFile(File file, int fileId, FileHandleCache handles) throws IOException, NoSuchAlgorithmException {
+        this.file = file;
+        this.fileId = fileId;
+        this.handles = handles;
         this.dataFileSizeListeners = new ArrayList<>();
-        this.writeHeader(this.storeFile);
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            // existing files keep their state, so files soft deleted by a merge are not brought back on restart
+            if(storeFile.length() >= HEADER_SIZE) {
+                this.readHeader(storeFile);
+            } else {
+                this.writeHeader(storeFile);
+            }
+            this.length = storeFile.length();
+            this.flushedLength = this.length;
+        } finally {
+            handles.release(handle);
+        }
+    }
 
+    /**
+     * Closes the open handle of the file, it will be reopened on the next access.
+     */
+    public void refresh() {
+        handles.invalidate(this.file);
     }
 
-    public DataFile(File file) throws IOException, NoSuchAlgorithmException {
-        this.file = file;
-        this.storeFile = new RandomAccessFile(this.file,"rw");
-        this.dataFileSizeListeners = new ArrayList<>();
-        this.writeHeader(this.storeFile);
+    /**
+     * Attaches a write buffer to the file, appends are accumulated in it till they are flushed.
+     * @param writeBuffer Buffer to use, can be direct or heap, it is cleared before use
+     * @param durabilityMode When appends are flushed, see {@link DurabilityMode}
+     */
+    public synchronized void setWriteBuffer(ByteBuffer writeBuffer, DurabilityMode durabilityMode) {
+        writeBuffer.clear();
+        this.writeBuffer = writeBuffer;
+        this.writeBufferView = writeBuffer.duplicate();
+        this.durabilityMode = durabilityMode;
     }
 
-    public void refresh() throws FileNotFoundException {
+    /**
+     * Flushes the write buffer, writes the header and detaches the write buffer from the file.
+     * Called once no more appends are going to be made to the file.
+     * @return The detached write buffer, so it can be reused for the next file, null if there was none
+     */
+    public synchronized ByteBuffer seal() throws IOException, NoSuchAlgorithmException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
         try {
-            this.storeFile.close();
-        } catch (IOException e) {
-            System.err.println("Error in closing file: " + this.file.getName());
+            flush(storeFile, true);
+            this.writeHeader(storeFile);
+        } finally {
+            handles.release(handle);
         }
-        this.storeFile = new RandomAccessFile(this.file,"rw");
+        ByteBuffer buffer = this.writeBuffer;
+        this.writeBuffer = null;
+        this.writeBufferView = null;
+        return buffer;
+    }
+
+    /**
+     * Writes the entries in the write buffer to disk.
+     * @param sync Whether to fsync the file after writing
+     */
+    public synchronized void flush(boolean sync) throws IOException {
+        if((writeBuffer == null || writeBuffer.position() == 0) && !sync) {
+            return;
+        }
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            flush(storeFile, sync);
+        } finally {
+            handles.release(handle);
+        }
+    }
+
+    public synchronized void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public synchronized long length() {
+        return this.length;
     }
 
     public void addDataFileSizeListener(DataFileSizeListener dataFileSizeListener) {
@@ -82,43 +226,180 @@ public class DataFile extends DataFileHeader {
     public String getFileName() {
         return this.file.getName();
     }
-    public synchronized IndexLocation appendEntry(String key, String value) throws IOException, NoSuchAlgorithmException {
-        storeFile.seek(storeFile.length()); // Move to the end of the file
 
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    public int getFileId() {
+        return this.fileId;
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+    public SparseIndex getSparseIndex() {
+        return sparseIndex;
+    }
 
-        dataOutputStream.writeInt(keyBytes.length); // Key size
-        dataOutputStream.writeInt(valueBytes.length); // Value size
-        dataOutputStream.write(keyBytes); // Key data
-        dataOutputStream.write(valueBytes); // Value data
+    /**
+     * Marks the file as sorted by key, its keys are then looked up through the sparse index.
+     */
+    public void setSparseIndex(SparseIndex sparseIndex) {
+        this.sparseIndex = sparseIndex;
+    }
 
-        byte[] entryBytes = outputStream.toByteArray();
-        storeFile.write(entryBytes); // Write the whole entry
+    public boolean isSorted() {
+        return sparseIndex != null;
+    }
 
-        // check if size is greater than 1MB start writing to a new file
+    /**
+     * Records that an entry of the sorted file referencing the blob was replaced by a newer sorted file, and the
+     * reference of the entry released. Only kept in memory, the references of all the entries are taken again on restart.
+     */
+    public synchronized void supersedeBlob(long blobId) {
+        supersededBlobIds.merge(blobId, 1, Integer::sum);
+    }
 
-        long offset =  storeFile.length() - entryBytes.length; // Return the start offset of this entry
-        IndexLocation indexLocation = new IndexLocation(this.file.getName(), offset);
+    /**
+     * @return Blobs referenced by the entries of the sorted file which were not replaced by a newer sorted file,
+     * a blob appears once for every entry referencing it
+     */
+    public synchronized List<Long> getRetainedBlobIds() {
+        Map<Long, Integer> superseded = new HashMap<>(supersededBlobIds);
+        List<Long> blobIds = new ArrayList<>();
+        for(long blobId: sparseIndex.getBlobIds()) {
+            Integer count = superseded.get(blobId);
+            if(count == null) {
+                blobIds.add(blobId);
+            } else if(count > 1) {
+                superseded.put(blobId, count - 1);
+            } else {
+                superseded.remove(blobId);
+            }
+        }
+        return blobIds;
+    }
 
-        // if file size exceeds the threshold fire the event
+    /**
+     * Appends the entry, the key and value are encoded straight into the write buffer.
+     */
+    public synchronized IndexLocation appendEntry(String key, String value) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            long offset = append(storeFile, key, Utf8.length(value), value, null);
+            IndexLocation indexLocation = new IndexLocation(this.fileId, offset);
+            afterAppend(storeFile);
+            return indexLocation;
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        if(storeFile.length() > MAX_FILE_SIZE) {
-            notifyDataFileSizeListeners();
+    public synchronized IndexLocation appendEntry(String key, byte[] valueBytes) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            long offset = append(storeFile, key, valueBytes.length, null, valueBytes);
+            IndexLocation indexLocation = new IndexLocation(this.fileId, offset);
+            afterAppend(storeFile);
+            return indexLocation;
+        } finally {
+            handles.release(handle);
         }
+    }
 
-        this.writeHeader(this.storeFile);
+    /**
+     * Appends an entry pointing to a value stored in a blob file, the blob should be durable before it is referenced.
+     */
+    public synchronized BlobIndexLocation appendBlobReference(String key, long blobId, long blobLength) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            long offset = append(storeFile, key, BLOB_REFERENCE, null, encodeBlobReference(blobId, blobLength));
+            BlobIndexLocation indexLocation = new BlobIndexLocation(this.fileId, offset, blobId, blobLength);
+            afterAppend(storeFile);
+            return indexLocation;
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        return indexLocation;
+    /**
+     * Appends a delete of the key.
+     */
+    public synchronized TombstoneLocation appendTombstone(String key) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            long offset = append(storeFile, key, TOMBSTONE, null, null);
+            TombstoneLocation indexLocation = new TombstoneLocation(this.fileId, offset);
+            afterAppend(storeFile);
+            return indexLocation;
+        } finally {
+            handles.release(handle);
+        }
     }
 
+    /**
+     * Appends all the operations of the batch as a single record.
+     * @return Location of each operation of the batch in order, a TombstoneLocation for deletes
+     */
+    public synchronized List<IndexLocation> appendBatch(WriteBatch batch) throws IOException {
+        List<WriteBatch.Operation> operations = batch.getOperations();
+        List<byte[]> keys = new ArrayList<>(operations.size());
+        List<byte[]> values = new ArrayList<>(operations.size());
+        int payloadSize = 0;
+        for(WriteBatch.Operation operation: operations) {
+            byte[] keyBytes = operation.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = operation.isDelete() ? null : operation.getValue().getBytes(StandardCharsets.UTF_8);
+            keys.add(keyBytes);
+            values.add(valueBytes);
+            payloadSize += entrySize(keyBytes, valueBytes);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(BATCH_HEADER_SIZE + payloadSize);
+        record.position(BATCH_HEADER_SIZE);
+        for(int i = 0; i < keys.size(); i++) {
+            encodeEntry(record, keys.get(i), values.get(i) == null ? TOMBSTONE : values.get(i).length, values.get(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), BATCH_HEADER_SIZE, payloadSize);
+        record.putInt(0, BATCH_MARKER);
+        record.putInt(4, payloadSize);
+        record.putInt(8, (int) crc.getValue());
+        record.putInt(12, operations.size());
+        record.flip();
+
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            long offset = append(storeFile, record);
+
+            List<IndexLocation> locations = new ArrayList<>(operations.size());
+            long entryOffset = offset + BATCH_HEADER_SIZE;
+            for(int i = 0; i < keys.size(); i++) {
+                locations.add(values.get(i) == null ? new TombstoneLocation(this.fileId, entryOffset) : new IndexLocation(this.fileId, entryOffset));
+                entryOffset += entrySize(keys.get(i), values.get(i));
+            }
+
+            afterAppend(storeFile);
+            return locations;
+        } finally {
+            handles.release(handle);
+        }
+    }
 
+    /**
+     * Marks the file as deleted, the mark is synced before returning: a merge drops the deletes of the keys in the
+     * merged files, so a merged file coming back as live after a power loss would bring deleted keys back.
+     * @return false if the file could not be marked
+     */
     public synchronized boolean softdeleteFile() throws IOException, NoSuchAlgorithmException {
         try {
-            this.updateFileState(this.storeFile, (byte)1);
+            FileHandleCache.Handle handle = handles.acquire(this.file);
+            RandomAccessFile storeFile = handle.getStoreFile();
+            try {
+                this.updateFileState(storeFile, (byte)1);
+                storeFile.getFD().sync();
+            } finally {
+                handles.release(handle);
+            }
             //TODO: add the file to the list of files to be deleted
             return true;
         } catch (Exception e) {
@@ -130,95 +411,609 @@ public class DataFile extends DataFileHeader {
         return this.file;
     }
 
-    public synchronized IndexLocation appendEntryWhileMerging(String key, String value) throws IOException, NoSuchAlgorithmException {
-        storeFile.seek(storeFile.length()); // Move to the end of the file
+    /**
+     * Copies an entry to a file being produced by a merge, the file should be sealed once the merge is done.
+     * Values stored in blob files are not copied, only the reference to the blob is.
+     */
+    public synchronized IndexLocation appendEntryWhileMerging(Entry entry) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            if(entry.isTombstone()) {
+                return new TombstoneLocation(this.fileId, append(storeFile, entry.key, TOMBSTONE, null, null));
+            }
+            if(entry.isBlobReference()) {
+                long offset = append(storeFile, entry.key, BLOB_REFERENCE, null, encodeBlobReference(entry.blobId, entry.blobLength));
+                return new BlobIndexLocation(this.fileId, offset, entry.blobId, entry.blobLength);
+            }
+            long offset = append(storeFile, entry.key, entry.valueBytes.length, null, entry.valueBytes);
+            return new IndexLocation(this.fileId, offset);
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    /**
+     * Reads the value of the entry as a string, null for a delete. The value is decoded straight from the read buffer
+     * of the thread, so the string is the only allocation.
+     * @throws IOException If the value is stored in a blob file, which should be read through the blob instead
+     */
+    public synchronized String readEntry(IndexLocation indexLocation) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            ByteBuffer entry = readRecord(storeFile, indexLocation.getOffset());
+            int valueSize = checkValueSize(entry, indexLocation);
+            if(valueSize == TOMBSTONE) {
+                return null;
+            }
+            return new String(entry.array(), ENTRY_HEADER_SIZE + entry.getInt(0), valueSize, StandardCharsets.UTF_8);
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+    /**
+     * Reads the raw value of the entry, null for a delete.
+     * @throws IOException If the value is stored in a blob file, which should be read through the blob instead
+     */
+    public synchronized byte[] readValue(IndexLocation indexLocation) throws IOException {
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            ByteBuffer entry = readRecord(storeFile, indexLocation.getOffset());
+            int valueSize = checkValueSize(entry, indexLocation);
+            if(valueSize == TOMBSTONE) {
+                return null;
+            }
+            int valueOffset = ENTRY_HEADER_SIZE + entry.getInt(0);
+            return Arrays.copyOfRange(entry.array(), valueOffset, valueOffset + valueSize);
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        dataOutputStream.writeInt(keyBytes.length); // Key size
-        dataOutputStream.writeInt(valueBytes.length); // Value size
-        dataOutputStream.write(keyBytes); // Key data
-        dataOutputStream.write(valueBytes); // Value data
+    private int checkValueSize(ByteBuffer entry, IndexLocation indexLocation) throws IOException {
+        int valueSize = entry.getInt(4);
+        if(valueSize == BLOB_REFERENCE) {
+            throw new IOException("Value at offset " + indexLocation.getOffset() + " of file " + file.getName() + " is stored in a blob");
+        }
+        return valueSize;
+    }
 
-        byte[] entryBytes = outputStream.toByteArray();
-        storeFile.write(entryBytes); // Write the whole entry
+    /**
+     * Reads the entry at the offset into the read buffer of the thread: its header at the start of the buffer and
+     * its value right after where the key would be. Entries up to SPECULATIVE_READ_SIZE take a single read, larger
+     * ones a second read of just the value, the key is never read separately.
+     * @return Buffer holding the entry, valid till the next read of the thread
+     */
+    private ByteBuffer readRecord(RandomAccessFile storeFile, long offset) throws IOException {
+        ByteBuffer buffer = READ_BUFFER.get();
+        int speculativeSize = (int) Math.min(SPECULATIVE_READ_SIZE, this.length - offset);
+        if(speculativeSize < ENTRY_HEADER_SIZE) {
+            throw new EOFException("Entry at offset " + offset + " is beyond the end of file " + file.getName());
+        }
+        read(storeFile, offset, buffer, 0, speculativeSize);
+        int keySize = buffer.getInt(0);
+        int valueSize = buffer.getInt(4);
+        int valueBytesSize = valueBytesSize(valueSize);
+        if(keySize < 0 || valueBytesSize < 0) {
+            throw new IOException("Invalid entry at offset " + offset + " of file " + file.getName());
+        }
+        int entrySize = ENTRY_HEADER_SIZE + keySize + valueBytesSize;
+        if(entrySize <= speculativeSize) {
+            return buffer;
+        }
+        if(entrySize > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(entrySize);
+            larger.putInt(0, keySize);
+            larger.putInt(4, valueSize);
+            if(entrySize <= MAX_READ_BUFFER_SIZE) {
+                READ_BUFFER.set(larger);
+            }
+            buffer = larger;
+        }
+        int valueOffset = ENTRY_HEADER_SIZE + keySize;
+        read(storeFile, offset + valueOffset, buffer, valueOffset, valueBytesSize);
+        return buffer;
+    }
 
-        long offset =  storeFile.length() - entryBytes.length; // Return the start offset of this entry
-        this.writeHeader(this.storeFile);
-        return new IndexLocation(this.file.getName(), offset);
+    /**
+     * Reads all the entries of the file in the order they were written, entries of a batch are only returned if
+     * the whole batch is intact. Reading stops at the first entry which is cut short or corrupted.
+     */
+    public synchronized List<Entry> readEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try(EntryReader reader = openEntryReader()) {
+            Entry entry;
+            while((entry = reader.next()) != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
     }
 
-    public synchronized String readEntry(IndexLocation indexLocation) throws IOException {
-        storeFile.seek(indexLocation.getOffset()); // Move to the start of the entry
+    /**
+     * Opens a reader over the entries written to the file so far, see {@link EntryReader}.
+     */
+    public synchronized EntryReader openEntryReader() throws IOException {
+        flush(false);
+        return new EntryReader(this.length);
+    }
 
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(storeFile.getFD()));
+    /**
+     * EntryReader reads the entries of the file one at a time in the order they were written, through a stream of
+     * its own, so a file of any size can be read without holding its entries in memory. Same as readEntries, the
+     * entries of a batch are only returned if the whole batch is intact, and reading stops at the first entry which
+     * is cut short or corrupted.
+     */
+    public class EntryReader implements Closeable {
+        private final DataInputStream dataInputStream;
+        private final long fileLength;
+        private long offset = HEADER_SIZE;
+        // rest of the entries of the last batch read
+        private final ArrayDeque<Entry> batchEntries = new ArrayDeque<>();
+        private boolean done = false;
+        // a record which is not at the tail failed to decode, so it is not explained by a crash while appending
+        private boolean corrupted = false;
+
+        private EntryReader(long fileLength) throws IOException {
+            this.fileLength = fileLength;
+            FileInputStream fileInputStream = new FileInputStream(file);
+            fileInputStream.getChannel().position(HEADER_SIZE); // Move to the start of the entry
+            this.dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream, 64 * 1024));
+        }
 
-        int keySize = dataInputStream.readInt();
-        int valueSize = dataInputStream.readInt();
+        /**
+         * @return The next entry, null once all the entries are read
+         */
+        public Entry next() throws IOException {
+            if(!batchEntries.isEmpty()) {
+                return batchEntries.poll();
+            }
+            while(!done && offset + ENTRY_HEADER_SIZE <= fileLength) {
+                int keySize = dataInputStream.readInt();
+                int valueSize = dataInputStream.readInt();
+
+                if(keySize == BATCH_MARKER) {
+                    int payloadSize = valueSize;
+                    // batch at the tail can be partially written if the process crashed while flushing
+                    if(payloadSize < 0 || offset + BATCH_HEADER_SIZE + payloadSize > fileLength) {
+                        System.err.println("Ignoring truncated batch at offset " + offset + " in file " + file.getName());
+                        done = true;
+                        break;
+                    }
+                    int checksum = dataInputStream.readInt();
+                    int count = dataInputStream.readInt();
+                    byte[] payload = new byte[payloadSize];
+                    dataInputStream.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    List<Entry> entries = new ArrayList<>(Math.max(count, 0));
+                    if((int) crc.getValue() != checksum || !decodeEntries(ByteBuffer.wrap(payload), offset + BATCH_HEADER_SIZE, entries) || entries.size() != count) {
+                        long batchEnd = offset + BATCH_HEADER_SIZE + payloadSize;
+                        // the last record can be torn by a crash even though its length made it to disk
+                        if(batchEnd == fileLength) {
+                            System.err.println("Ignoring corrupted batch at the tail, offset " + offset + " in file " + file.getName());
+                            done = true;
+                            break;
+                        }
+                        // framed by its length, so the records behind it are still read
+                        System.err.println("Skipping corrupted batch at offset " + offset + " in file " + file.getName());
+                        corrupted = true;
+                        offset = batchEnd;
+                        continue;
+                    }
+                    offset = offset + BATCH_HEADER_SIZE + payloadSize;
+                    batchEntries.addAll(entries);
+                    if(!batchEntries.isEmpty()) {
+                        return batchEntries.poll();
+                    }
+                    continue;
+                }
+
+                int valueBytesSize = valueBytesSize(valueSize);
+                // the end of the records can not be found past an invalid header, nothing behind it is read
+                if(keySize < 0 || valueBytesSize < 0) {
+                    System.err.println("Stopping at corrupted entry at offset " + offset + " in file " + file.getName());
+                    corrupted = true;
+                    done = true;
+                    break;
+                }
+                // entry at the tail can be partially written if the process crashed while flushing
+                if(offset + ENTRY_HEADER_SIZE + keySize + valueBytesSize > fileLength) {
+                    System.err.println("Ignoring truncated entry at offset " + offset + " in file " + file.getName());
+                    done = true;
+                    break;
+                }
+
+                byte[] keyBytes = new byte[keySize];
+                byte[] valueBytes = new byte[valueBytesSize];
+
+                dataInputStream.readFully(keyBytes);
+                dataInputStream.readFully(valueBytes);
+                Entry entry = toEntry(keyBytes, valueSize, valueBytes, offset);
+                offset = offset + ENTRY_HEADER_SIZE + keySize + valueBytesSize;
+                return entry;
+            }
+            return null;
+        }
 
-        byte[] keyBytes = new byte[keySize];
-        byte[] valueBytes = new byte[valueSize];
+        /**
+         * @return Offset right after the last intact record read, where a record cut short starts once reading stops
+         */
+        public long getOffset() {
+            return offset;
+        }
 
-        dataInputStream.read(keyBytes);
-        dataInputStream.read(valueBytes);
+        /**
+         * @return true if a record before the tail was corrupted, the records read are then not all of the file
+         */
+        public boolean isCorrupted() {
+            return corrupted;
+        }
 
-        return new String(valueBytes, StandardCharsets.UTF_8);
+        @Override
+        public void close() throws IOException {
+            dataInputStream.close();
+        }
     }
 
+    /**
+     * Cuts off the record at the tail of the file which was only partially written when the process crashed.
+     * Called on the file which becomes the current file on startup, before it takes appends, otherwise the appends
+     * land after the torn record and reading stops at it on the next restart, dropping them.
+     * Only a bad record which reaches the end of the file is cut off, a corrupted record with data behind it is not
+     * explained by a crash and the file is left as it is.
+     * @return Number of bytes cut off, -1 if the file holds a corrupted record before its tail
+     */
+    public synchronized long truncateTornTail() throws IOException {
+        long validLength;
+        try(EntryReader reader = openEntryReader()) {
+            while(reader.next() != null) {
+                // read till the end, or the first record which is cut short
+            }
+            if(reader.isCorrupted()) {
+                return -1;
+            }
+            validLength = reader.getOffset();
+        }
+        if(validLength >= this.length) {
+            return 0;
+        }
+        long tornBytes = this.length - validLength;
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            storeFile.setLength(validLength);
+            storeFile.getChannel().force(false);
+        } finally {
+            handles.release(handle);
+        }
+        this.length = validLength;
+        this.flushedLength = validLength;
+        return tornBytes;
+    }
 
-    public synchronized List<Entry> readEntries() throws IOException {
-        storeFile.seek(HEADER_SIZE); // Move to the start of the entry
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(storeFile.getFD()));
-        List<Entry> entries = new ArrayList<>();
-        if(file.length() == 0) {
-            return entries;
+    /**
+     * Looks the key up in a sorted file through its sparse index, reading at most one index block and one range of
+     * entries. Sorted files are not written to anymore, so this does not take the lock of the file.
+     * @return Entry of the key, which can be a delete, null if the file does not hold the key
+     */
+    public Entry findEntry(String key) throws IOException {
+        SparseIndex index = this.sparseIndex;
+        if(index == null) {
+            throw new IOException("File " + file.getName() + " is not sorted");
+        }
+        long[] range = index.locate(key);
+        if(range == null) {
+            return null;
+        }
+        ByteBuffer entries = ByteBuffer.allocate((int) (range[1] - range[0]));
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            FileChannel channel = storeFile.getChannel();
+            long position = range[0];
+            while(entries.hasRemaining()) {
+                int read = channel.read(entries, position);
+                if(read < 0) {
+                    throw new EOFException("Entries at offset " + range[0] + " are beyond the end of file " + file.getName());
+                }
+                position += read;
+            }
+        } finally {
+            handles.release(handle);
+        }
+        entries.flip();
+        while(entries.remaining() >= ENTRY_HEADER_SIZE) {
+            long offset = range[0] + entries.position();
+            int keySize = entries.getInt();
+            int valueSize = entries.getInt();
+            int valueBytesSize = valueBytesSize(valueSize);
+            if(keySize < 0 || valueBytesSize < 0 || entries.remaining() < keySize + valueBytesSize) {
+                throw new IOException("Invalid entry at offset " + offset + " of file " + file.getName());
+            }
+            String entryKey = new String(entries.array(), entries.position(), keySize, StandardCharsets.UTF_8);
+            entries.position(entries.position() + keySize);
+            int comparison = entryKey.compareTo(key);
+            if(comparison == 0) {
+                byte[] valueBytes = new byte[valueBytesSize];
+                entries.get(valueBytes);
+                return toEntry(entryKey, valueSize, valueBytes, offset);
+            }
+            // keys are in ascending order, the key would have been here
+            if(comparison > 0) {
+                return null;
+            }
+            entries.position(entries.position() + valueBytesSize);
         }
-        long offset = HEADER_SIZE;
-        while(offset < storeFile.length()) {
-            int keySize = dataInputStream.readInt();
-            int valueSize = dataInputStream.readInt();
+        return null;
+    }
 
+    /**
+     * Decodes the entries of a batch payload.
+     * @param payloadOffset Offset of the payload in the file
+     * @return false if the payload does not consist of complete entries
+     */
+    private static boolean decodeEntries(ByteBuffer payload, long payloadOffset, List<Entry> entries) {
+        while(payload.hasRemaining()) {
+            if(payload.remaining() < ENTRY_HEADER_SIZE) {
+                return false;
+            }
+            long offset = payloadOffset + payload.position();
+            int keySize = payload.getInt();
+            int valueSize = payload.getInt();
+            int valueBytesSize = valueBytesSize(valueSize);
+            if(keySize < 0 || valueBytesSize < 0 || payload.remaining() < keySize + valueBytesSize) {
+                return false;
+            }
             byte[] keyBytes = new byte[keySize];
-            byte[] valueBytes = new byte[valueSize];
+            byte[] valueBytes = new byte[valueBytesSize];
+            payload.get(keyBytes);
+            payload.get(valueBytes);
+            entries.add(toEntry(keyBytes, valueSize, valueBytes, offset));
+        }
+        return true;
+    }
 
-            dataInputStream.read(keyBytes);
-            dataInputStream.read(valueBytes);
-            entries.add(new Entry(new String(keyBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8), offset));
-            offset = offset + 8 + keySize + valueSize;
-            if(offset >= storeFile.length()) {
-                break;
-            }
+    /**
+     * Number of bytes following the key of an entry with the given value size field, negative if it is invalid.
+     */
+    private static int valueBytesSize(int valueSize) {
+        if(valueSize == TOMBSTONE) {
+            return 0;
         }
-        return entries;
+        if(valueSize == BLOB_REFERENCE) {
+            return BLOB_REFERENCE_SIZE;
+        }
+        return valueSize;
+    }
+
+    private static Entry toEntry(byte[] keyBytes, int valueSize, byte[] valueBytes, long offset) {
+        return toEntry(new String(keyBytes, StandardCharsets.UTF_8), valueSize, valueBytes, offset);
+    }
+
+    private static Entry toEntry(String key, int valueSize, byte[] valueBytes, long offset) {
+        if(valueSize == TOMBSTONE) {
+            return new Entry(key, null, offset);
+        }
+        if(valueSize == BLOB_REFERENCE) {
+            ByteBuffer reference = ByteBuffer.wrap(valueBytes);
+            Entry entry = new Entry(key, null, offset);
+            entry.blobId = reference.getLong();
+            entry.blobLength = reference.getLong();
+            return entry;
+        }
+        return new Entry(key, valueBytes, offset);
     }
 
     public synchronized String readKey(IndexLocation indexLocation) throws IOException {
-        storeFile.seek(indexLocation.getOffset()); // Move to the start of the entry
+        FileHandleCache.Handle handle = handles.acquire(this.file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            byte[] entryHeader = new byte[ENTRY_HEADER_SIZE];
+            read(storeFile, indexLocation.getOffset(), entryHeader);
+            int keySize = ByteBuffer.wrap(entryHeader).getInt();
 
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(storeFile.getFD()));
+            byte[] keyBytes = new byte[keySize];
+            read(storeFile, indexLocation.getOffset() + ENTRY_HEADER_SIZE, keyBytes);
 
-        int keySize = dataInputStream.readInt();
-        int valueSize = dataInputStream.readInt();
+            return new String(keyBytes, StandardCharsets.UTF_8);
+        } finally {
+            handles.release(handle);
+        }
+    }
 
-        byte[] keyBytes = new byte[keySize];
-        byte[] valueBytes = new byte[valueSize];
+    /**
+     * Encodes the entry into the write buffer, flushing the buffer first if the entry does not fit.
+     * @param valueSize Value size field of the entry, length of the value or one of TOMBSTONE, BLOB_REFERENCE
+     * @param value Value to encode, null if the value bytes are given instead
+     * @param valueBytes Bytes following the key when value is null, null for a tombstone
+     * @return Offset of the entry in the file
+     */
+    private long append(RandomAccessFile storeFile, String key, int valueSize, String value, byte[] valueBytes) throws IOException {
+        int keySize = Utf8.length(key);
+        int entrySize = ENTRY_HEADER_SIZE + keySize + (value != null ? valueSize : valueBytes == null ? 0 : valueBytes.length);
+        long offset = this.length;
+        if(reserve(storeFile, entrySize)) {
+            encodeEntry(writeBuffer, key, keySize, valueSize, value, valueBytes);
+        } else {
+            // no buffer or the entry is larger than the buffer, buffer is empty at this point so the entry goes straight to disk
+            ByteBuffer entry = ByteBuffer.allocate(entrySize);
+            encodeEntry(entry, key, keySize, valueSize, value, valueBytes);
+            entry.flip();
+            write(storeFile.getChannel(), entry, this.flushedLength);
+            this.flushedLength += entrySize;
+        }
+        this.length += entrySize;
+        return offset;
+    }
 
-        dataInputStream.read(keyBytes);
-        dataInputStream.read(valueBytes);
+    /**
+     * Flushes as per the durability mode and fires the file size event, after an append made by the writer.
+     */
+    private void afterAppend(RandomAccessFile storeFile) throws IOException {
+        if(durabilityMode != DurabilityMode.BUFFERED) {
+            flush(storeFile, durabilityMode == DurabilityMode.SYNC);
+        }
 
-        return new String(keyBytes, StandardCharsets.UTF_8);
+        // if file size exceeds the threshold fire the event
+        if(this.length > maxFileSize) {
+            notifyDataFileSizeListeners();
+        }
     }
 
-    private void createDirectoryIfNotExists(String directoryPath) {
-        File directory = new File(directoryPath);
-        if (!directory.exists()) {
-            directory.mkdirs();
+    /**
+     * Appends an already encoded record.
+     * @return Offset of the record in the file
+     */
+    private long append(RandomAccessFile storeFile, ByteBuffer record) throws IOException {
+        int recordSize = record.remaining();
+        long offset = this.length;
+        if(reserve(storeFile, recordSize)) {
+            writeBuffer.put(record);
+        } else {
+            write(storeFile.getChannel(), record, this.flushedLength);
+            this.flushedLength += recordSize;
         }
+        this.length += recordSize;
+        return offset;
     }
 
-}
+    /**
+     * Makes room for size bytes in the write buffer by flushing it.
+     * @return false if there is no write buffer or the bytes can not fit even in an empty buffer
+     */
+    private boolean reserve(RandomAccessFile storeFile, int size) throws IOException {
+        if(writeBuffer == null) {
+            return false;
+        }
+        if(writeBuffer.remaining() < size) {
+            flushAligned(storeFile);
+            if(writeBuffer.remaining() < size) {
+                flush(storeFile, false);
+            }
+        }
+        return writeBuffer.remaining() >= size;
+    }
+
+    private static byte[] encodeBlobReference(long blobId, long blobLength) {
+        return ByteBuffer.allocate(BLOB_REFERENCE_SIZE).putLong(blobId).putLong(blobLength).array();
+    }
+
+    private static int entrySize(byte[] keyBytes, byte[] valueBytes) {
+        return ENTRY_HEADER_SIZE + keyBytes.length + (valueBytes == null ? 0 : valueBytes.length);
+    }
+
+    private static void encodeEntry(ByteBuffer buffer, String key, int keySize, int valueSize, String value, byte[] valueBytes) {
+        buffer.putInt(keySize); // Key size
+        buffer.putInt(valueSize); // Value size
+        Utf8.encode(key, buffer); // Key data
+        if(value != null) {
+            Utf8.encode(value, buffer); // Value data
+        } else if(valueBytes != null) {
+            buffer.put(valueBytes); // Value data
+        }
+    }
+
+    private static void encodeEntry(ByteBuffer buffer, byte[] keyBytes, int valueSize, byte[] valueBytes) {
+        buffer.putInt(keyBytes.length); // Key size
+        buffer.putInt(valueSize); // Value size
+        buffer.put(keyBytes); // Key data
+        if(valueBytes != null) {
+            buffer.put(valueBytes); // Value data
+        }
+    }
+
+    /**
+     * Writes the buffered bytes till the last FLUSH_ALIGNMENT boundary of the file, keeping the tail in the buffer.
+     * Falls back to a complete flush when the buffered bytes do not cross a boundary.
+     */
+    private void flushAligned(RandomAccessFile storeFile) throws IOException {
+        long alignedLength = (this.length / FLUSH_ALIGNMENT) * FLUSH_ALIGNMENT;
+        if(alignedLength <= this.flushedLength) {
+            flush(storeFile, false);
+            return;
+        }
+        int alignedBytes = (int)(alignedLength - this.flushedLength);
+        int bufferedBytes = writeBuffer.position();
+        writeBuffer.flip();
+        writeBuffer.limit(alignedBytes);
+        write(storeFile.getChannel(), writeBuffer, this.flushedLength);
+        writeBuffer.limit(bufferedBytes);
+        writeBuffer.compact();
+        this.flushedLength = alignedLength;
+    }
+
+    private void flush(RandomAccessFile storeFile, boolean sync) throws IOException {
+        if(writeBuffer != null && writeBuffer.position() > 0) {
+            writeBuffer.flip();
+            write(storeFile.getChannel(), writeBuffer, this.flushedLength);
+            writeBuffer.clear();
+            this.flushedLength = this.length;
+        }
+        if(sync) {
+            storeFile.getChannel().force(false);
+        }
+    }
 
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads bytes from the given offset of the file, the part which is not flushed yet is read from the write buffer.
+     */
+    private void read(RandomAccessFile storeFile, long offset, byte[] bytes) throws IOException {
+        int fromDisk = (int) Math.max(0, Math.min(bytes.length, this.flushedLength - offset));
+        if(fromDisk > 0) {
+            storeFile.seek(offset);
+            storeFile.readFully(bytes, 0, fromDisk);
+        }
+        if(fromDisk < bytes.length) {
+            readBuffered(offset + fromDisk, bytes, fromDisk, bytes.length - fromDisk);
+        }
+    }
+
+    /**
+     * Reads size bytes from the given offset of the file into the heap buffer at bufferOffset, with a positional
+     * read for the part on disk, the part which is not flushed yet is read from the write buffer.
+     */
+    private void read(RandomAccessFile storeFile, long offset, ByteBuffer buffer, int bufferOffset, int size) throws IOException {
+        int fromDisk = (int) Math.max(0, Math.min(size, this.flushedLength - offset));
+        if(fromDisk > 0) {
+            FileChannel channel = storeFile.getChannel();
+            buffer.limit(bufferOffset + fromDisk);
+            buffer.position(bufferOffset);
+            long position = offset;
+            while(buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if(read < 0) {
+                    throw new EOFException("Entry at offset " + offset + " is beyond the end of file " + file.getName());
+                }
+                position += read;
+            }
+            buffer.clear();
+        }
+        if(fromDisk < size) {
+            readBuffered(offset + fromDisk, buffer.array(), bufferOffset + fromDisk, size - fromDisk);
+        }
+    }
+
+    /**
+     * Copies bytes which are not flushed yet, starting at the given offset of the file, from the write buffer.
+     */
+    private void readBuffered(long offset, byte[] bytes, int bytesOffset, int size) throws EOFException {
+        int bufferOffset = (int)(offset - this.flushedLength);
+        if(writeBuffer == null || bufferOffset < 0 || bufferOffset + size > writeBuffer.position()) {
+            throw new EOFException("Entry at offset " + offset + " is beyond the end of file " + file.getName());
+        }
+        writeBufferView.clear();
+        writeBufferView.position(bufferOffset);
+        writeBufferView.get(bytes, bytesOffset, size);
+    }
+
+}
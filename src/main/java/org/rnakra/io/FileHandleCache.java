@@ -0,0 +1,218 @@
+package org.rnakra.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FileHandleCache bounds the number of RandomAccessFile handles kept open by the data files.
+ * When the limit is crossed the least recently used handle which is not in use gets closed, it is reopened on
+ * demand the next time the file is accessed.
+ * A handle is pinned between acquire and release, pinned handles are never closed by eviction, and a handle which is
+ * invalidated while pinned is only closed once the last pin is released.
+ *
+ * Acquiring and releasing an open handle only touches the handle itself, so readers of different files (or of the
+ * same file) do not contend on a lock. Only eviction, which runs when a handle is opened over the limit, is serialised.
+ * Opening a file and deleting it through {@link #delete(File)} lock the file, so a file is never recreated by
+ * opening it while it is being deleted.
+ */
+public class FileHandleCache {
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+    // pin count of a handle which is closed or being closed, it can not be pinned anymore
+    private static final int CLOSED = -1;
+    private static final int FILE_LOCK_STRIPES = 64;
+
+    /**
+     * Open handle of a file, returned by acquire and passed back to release.
+     */
+    public static final class Handle {
+        private final RandomAccessFile storeFile;
+        private final AtomicInteger pins = new AtomicInteger(1);
+        private volatile long lastAccessNanos = System.nanoTime();
+        // no longer in the cache, closed once the last pin is released
+        private volatile boolean retired = false;
+
+        /**
+         * The handle starts pinned by the thread opening it, so eviction can not close it before it is used.
+         */
+        private Handle(RandomAccessFile storeFile) {
+            this.storeFile = storeFile;
+        }
+
+        public RandomAccessFile getStoreFile() {
+            return storeFile;
+        }
+
+        /**
+         * @return false if the handle was closed, the caller should look the file up again
+         */
+        private boolean pin() {
+            int current;
+            do {
+                current = pins.get();
+                if(current == CLOSED) {
+                    return false;
+                }
+            } while(!pins.compareAndSet(current, current + 1));
+            lastAccessNanos = System.nanoTime();
+            return true;
+        }
+
+        private void unpin() {
+            int current;
+            do {
+                current = pins.get();
+                if(current <= 0) {
+                    return;
+                }
+            } while(!pins.compareAndSet(current, current - 1));
+            if(current == 1 && retired) {
+                closeIfUnpinned();
+            }
+        }
+
+        private void closeIfUnpinned() {
+            if(pins.compareAndSet(0, CLOSED)) {
+                close(this);
+            }
+        }
+    }
+
+    private final int maxOpenFiles;
+    private final ConcurrentHashMap<File, Handle> handles = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private final Object[] fileLocks = new Object[FILE_LOCK_STRIPES];
+
+    public FileHandleCache() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public FileHandleCache(int maxOpenFiles) {
+        if(maxOpenFiles < 1) {
+            throw new IllegalArgumentException("maxOpenFiles should be at least 1");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        for(int i = 0; i < FILE_LOCK_STRIPES; i++) {
+            fileLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns an open handle for the file, opening it if required. Every acquire must be paired with a release of
+     * the returned handle.
+     * @param file File to open
+     * @return Open handle of the file
+     * @throws FileNotFoundException If the file no longer exists on disk
+     */
+    public Handle acquire(File file) throws FileNotFoundException {
+        while(true) {
+            Handle handle = handles.get(file);
+            if(handle == null) {
+                Handle opened = open(file);
+                handle = handles.putIfAbsent(file, opened);
+                if(handle == null) {
+                    evictIfRequired();
+                    return opened;
+                }
+                // another thread opened the file first
+                close(opened);
+            }
+            if(handle.pin()) {
+                return handle;
+            }
+            // evicted between the lookup and the pin
+            handles.remove(file, handle);
+        }
+    }
+
+    public void release(Handle handle) {
+        handle.unpin();
+        if(handles.size() > maxOpenFiles) {
+            evictIfRequired();
+        }
+    }
+
+    /**
+     * Closes the handle of the file if it is open, reads in flight keep using it till they release it.
+     */
+    public void invalidate(File file) {
+        Handle handle = handles.remove(file);
+        if(handle != null) {
+            handle.retired = true;
+            handle.closeIfUnpinned();
+        }
+    }
+
+    /**
+     * Deletes the file from disk and closes its handle, locking out opens of the file while doing so.
+     * @return true if the file was deleted
+     */
+    public boolean delete(File file) {
+        synchronized(fileLock(file)) {
+            invalidate(file);
+            return file.delete();
+        }
+    }
+
+    public int getOpenFileCount() {
+        return handles.size();
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    private Handle open(File file) throws FileNotFoundException {
+        synchronized(fileLock(file)) {
+            // "rw" mode would silently recreate a file which was already cleaned up
+            if(!file.exists()) {
+                throw new FileNotFoundException("File not found: " + file.getName());
+            }
+            return new Handle(new RandomAccessFile(file, "rw"));
+        }
+    }
+
+    private Object fileLock(File file) {
+        return fileLocks[Math.floorMod(file.hashCode(), FILE_LOCK_STRIPES)];
+    }
+
+    private void evictIfRequired() {
+        if(handles.size() <= maxOpenFiles) {
+            return;
+        }
+        synchronized(evictionLock) {
+            // pinned handles are skipped, so the cache can go over the limit till they are released
+            while(handles.size() > maxOpenFiles) {
+                Map.Entry<File, Handle> leastRecentlyUsed = null;
+                for(Map.Entry<File, Handle> entry: handles.entrySet()) {
+                    Handle handle = entry.getValue();
+                    if(handle.pins.get() == 0 && (leastRecentlyUsed == null
+                            || handle.lastAccessNanos - leastRecentlyUsed.getValue().lastAccessNanos < 0)) {
+                        leastRecentlyUsed = entry;
+                    }
+                }
+                if(leastRecentlyUsed == null) {
+                    return;
+                }
+                Handle handle = leastRecentlyUsed.getValue();
+                // fails if the handle got pinned since the scan, it is then skipped in the next round
+                if(handle.pins.compareAndSet(0, CLOSED)) {
+                    handles.remove(leastRecentlyUsed.getKey(), handle);
+                    close(handle);
+                }
+            }
+        }
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.storeFile.close();
+        } catch (IOException e) {
+            System.err.println("Error in closing file handle: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.rnakra.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * SparseIndex is the index of a data file whose entries are sorted by key, kept in a sidecar file next to the data
+ * file (named after it with an .idx suffix). Only every few KB of entries get an index entry, and the index entries
+ * are grouped in blocks of about INDEX_BLOCK_SIZE. Only the first key of every block, the Bloom filter and the blobs
+ * referenced by the file are held in memory, so a lookup reads at most one index block and then one range of entries
+ * of the data file.
+ *
+ * SIDECAR STRUCTURE
+ * index blocks, each: number of entries, entries (key size, key bytes, offset of the entry in the data file),
+ * offset in the data file where the entries of the last index entry end
+ * meta: Bloom filter, blob ids referenced by the file, length of the data file, last key, number of blocks,
+ * for each block its first key, offset and size in the sidecar
+ * footer: offset of the meta, number of entries, CRC32 of the meta, MAGIC
+ * A sidecar which is cut short, does not match its checksum or was written for a different length of the data file
+ * is ignored, the data file is then read as an unsorted file.
+ */
+public class SparseIndex {
+    private static final int MAGIC = 0x53494458; // SIDX
+    private static final int FOOTER_SIZE = 24; // Meta offset + Number of entries + Checksum + Magic number
+    private static final int INDEX_BLOCK_SIZE = 4096;
+
+    private final File file;
+    private final FileHandleCache handles;
+    private final BloomFilter bloomFilter;
+    private final long[] blobIds;
+    private final long entryCount;
+    private final String lastKey;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockSizes;
+
+    private SparseIndex(File file, FileHandleCache handles, BloomFilter bloomFilter, long[] blobIds, long entryCount,
+                        String lastKey, String[] blockKeys, long[] blockOffsets, int[] blockSizes) {
+        this.file = file;
+        this.handles = handles;
+        this.bloomFilter = bloomFilter;
+        this.blobIds = blobIds;
+        this.entryCount = entryCount;
+        this.lastKey = lastKey;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockSizes = blockSizes;
+    }
+
+    public static File sidecarFile(File dataFile) {
+        return new File(dataFile.getParentFile(), dataFile.getName() + ".idx");
+    }
+
+    /**
+     * Loads the sparse index of the data file from its sidecar.
+     * @param dataLength Length of the data file, the sidecar is only used if it was written for this length
+     * @return The sparse index, null if the file has no valid sidecar
+     */
+    public static SparseIndex load(File dataFile, long dataLength, FileHandleCache handles) {
+        File sidecar = sidecarFile(dataFile);
+        if(!sidecar.exists()) {
+            return null;
+        }
+        try {
+            FileHandleCache.Handle handle = handles.acquire(sidecar);
+            RandomAccessFile storeFile = handle.getStoreFile();
+            try {
+                long length = storeFile.length();
+                if(length < FOOTER_SIZE) {
+                    throw new EOFException("Sidecar is cut short");
+                }
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                readFully(storeFile.getChannel(), footer, length - FOOTER_SIZE);
+                long metaOffset = footer.getLong(0);
+                long entryCount = footer.getLong(8);
+                int checksum = footer.getInt(16);
+                if(footer.getInt(20) != MAGIC || metaOffset < 0 || metaOffset > length - FOOTER_SIZE) {
+                    throw new IOException("Invalid footer");
+                }
+                ByteBuffer meta = ByteBuffer.allocate((int) (length - FOOTER_SIZE - metaOffset));
+                readFully(storeFile.getChannel(), meta, metaOffset);
+                CRC32 crc = new CRC32();
+                crc.update(meta.array());
+                if((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch");
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+                BloomFilter bloomFilter = BloomFilter.read(in);
+                long[] blobIds = new long[in.readInt()];
+                for(int i = 0; i < blobIds.length; i++) {
+                    blobIds[i] = in.readLong();
+                }
+                if(in.readLong() != dataLength) {
+                    throw new IOException("Written for a different length of the data file");
+                }
+                String lastKey = readKey(in);
+                int blockCount = in.readInt();
+                String[] blockKeys = new String[blockCount];
+                long[] blockOffsets = new long[blockCount];
+                int[] blockSizes = new int[blockCount];
+                for(int i = 0; i < blockCount; i++) {
+                    blockKeys[i] = readKey(in);
+                    blockOffsets[i] = in.readLong();
+                    blockSizes[i] = in.readInt();
+                }
+                return new SparseIndex(sidecar, handles, bloomFilter, blobIds, entryCount, lastKey, blockKeys, blockOffsets, blockSizes);
+            } finally {
+                handles.release(handle);
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring sparse index of file " + dataFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the file definitely does not hold the key
+     */
+    public boolean mightContain(String key) {
+        return blockKeys.length > 0 && key.compareTo(blockKeys[0]) >= 0 && key.compareTo(lastKey) <= 0
+                && bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Finds the range of entries of the data file which holds the key if the file has it, reading one index block.
+     * @return Start and end offset of the range in the data file, null if the file does not hold the key
+     */
+    public long[] locate(String key) throws IOException {
+        if(!mightContain(key)) {
+            return null;
+        }
+        // last block starting at or before the key
+        int block = Arrays.binarySearch(blockKeys, key);
+        if(block < 0) {
+            block = -block - 2;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(blockSizes[block]);
+        FileHandleCache.Handle handle = handles.acquire(file);
+        RandomAccessFile storeFile = handle.getStoreFile();
+        try {
+            readFully(storeFile.getChannel(), bytes, blockOffsets[block]);
+        } finally {
+            handles.release(handle);
+        }
+        bytes.flip();
+        int count = bytes.getInt();
+        long start = -1;
+        for(int i = 0; i < count; i++) {
+            int keySize = bytes.getInt();
+            String indexKey = new String(bytes.array(), bytes.position(), keySize, StandardCharsets.UTF_8);
+            bytes.position(bytes.position() + keySize);
+            long offset = bytes.getLong();
+            if(indexKey.compareTo(key) > 0) {
+                return start < 0 ? null : new long[]{start, offset};
+            }
+            start = offset;
+        }
+        long end = bytes.getLong();
+        return start < 0 ? null : new long[]{start, end};
+    }
+
+    /**
+     * @return Blobs referenced by the entries of the file, a blob appears once for every entry referencing it
+     */
+    public long[] getBlobIds() {
+        return blobIds;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    private static String readKey(DataInputStream in) throws IOException {
+        byte[] keyBytes = new byte[in.readInt()];
+        in.readFully(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeKey(DataOutputStream out, String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new EOFException("Sidecar is cut short");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the sidecar of a sorted data file while its entries are appended, the entries should be added in
+     * ascending order of keys.
+     */
+    public static class Builder {
+        private final File sidecar;
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream out;
+        private final BloomFilter bloomFilter;
+        private final int interval;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(INDEX_BLOCK_SIZE * 2);
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private int blockEntries = 0;
+        private final List<String> blockKeys = new ArrayList<>();
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private final List<Integer> blockSizes = new ArrayList<>();
+        private final List<Long> blobIds = new ArrayList<>();
+        private long sidecarLength = 0;
+        private long entryCount = 0;
+        private long lastIndexedOffset = -1;
+        private String lastKey = null;
+
+        /**
+         * @param expectedKeys Upper bound of the number of keys, the Bloom filter is sized for it
+         * @param interval An index entry is added once the entries since the last one span this many bytes
+         */
+        public Builder(File dataFile, long expectedKeys, int bitsPerKey, int interval) throws IOException {
+            this.sidecar = sidecarFile(dataFile);
+            this.fileOutputStream = new FileOutputStream(sidecar);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            this.bloomFilter = new BloomFilter(expectedKeys, bitsPerKey);
+            this.interval = interval;
+        }
+
+        /**
+         * @param offset Offset of the entry in the data file
+         * @param blobId Blob referenced by the entry, -1 if it has none
+         */
+        public void add(String key, long offset, long blobId) throws IOException {
+            if(lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IllegalArgumentException("Keys should be added in ascending order: " + key + " after " + lastKey);
+            }
+            bloomFilter.add(key);
+            entryCount++;
+            lastKey = key;
+            if(blobId >= 0) {
+                blobIds.add(blobId);
+            }
+            if(lastIndexedOffset >= 0 && offset - lastIndexedOffset < interval) {
+                return;
+            }
+            if(block.size() >= INDEX_BLOCK_SIZE) {
+                writeBlock(offset);
+            }
+            if(blockEntries == 0) {
+                blockKeys.add(key);
+            }
+            writeKey(blockOut, key);
+            blockOut.writeLong(offset);
+            blockEntries++;
+            lastIndexedOffset = offset;
+        }
+
+        /**
+         * Writes the rest of the sidecar and syncs it, the data file should be sealed by now.
+         * @param dataLength Length of the sealed data file
+         */
+        public SparseIndex finish(long dataLength, FileHandleCache handles) throws IOException {
+            try {
+                if(blockEntries > 0) {
+                    writeBlock(dataLength);
+                }
+                ByteArrayOutputStream meta = new ByteArrayOutputStream();
+                DataOutputStream metaOut = new DataOutputStream(meta);
+                bloomFilter.write(metaOut);
+                metaOut.writeInt(blobIds.size());
+                for(long blobId: blobIds) {
+                    metaOut.writeLong(blobId);
+                }
+                metaOut.writeLong(dataLength);
+                writeKey(metaOut, lastKey == null ? "" : lastKey);
+                metaOut.writeInt(blockKeys.size());
+                for(int i = 0; i < blockKeys.size(); i++) {
+                    writeKey(metaOut, blockKeys.get(i));
+                    metaOut.writeLong(blockOffsets.get(i));
+                    metaOut.writeInt(blockSizes.get(i));
+                }
+                CRC32 crc = new CRC32();
+                crc.update(meta.toByteArray());
+                meta.writeTo(out);
+                out.writeLong(sidecarLength);
+                out.writeLong(entryCount);
+                out.writeInt((int) crc.getValue());
+                out.writeInt(MAGIC);
+                out.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                out.close();
+            }
+            long[] blobIdArray = new long[blobIds.size()];
+            for(int i = 0; i < blobIdArray.length; i++) {
+                blobIdArray[i] = blobIds.get(i);
+            }
+            int[] blockSizeArray = new int[blockSizes.size()];
+            long[] blockOffsetArray = new long[blockOffsets.size()];
+            for(int i = 0; i < blockSizeArray.length; i++) {
+                blockSizeArray[i] = blockSizes.get(i);
+                blockOffsetArray[i] = blockOffsets.get(i);
+            }
+            return new SparseIndex(sidecar, handles, bloomFilter, blobIdArray, entryCount, lastKey == null ? "" : lastKey,
+                    blockKeys.toArray(new String[0]), blockOffsetArray, blockSizeArray);
+        }
+
+        /**
+         * @param endOffset Offset in the data file where the entries of the last index entry of the block end
+         */
+        private void writeBlock(long endOffset) throws IOException {
+            out.writeInt(blockEntries);
+            block.writeTo(out);
+            out.writeLong(endOffset);
+            int blockSize = 4 + block.size() + 8;
+            blockOffsets.add(sidecarLength);
+            blockSizes.add(blockSize);
+            sidecarLength += blockSize;
+            block.reset();
+            blockEntries = 0;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.rnakra.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KeyGenerator picks the number of the key for the next operation, out of the keys inserted so far.
+ * uniform: every key is equally likely
+ * zipfian: a few keys are hot, hot keys are scattered over the key space (scrambled zipfian as in YCSB)
+ * latest: the most recently inserted keys are the hottest
+ */
+public abstract class KeyGenerator {
+
+    protected final AtomicLong insertedKeys;
+
+    protected KeyGenerator(AtomicLong insertedKeys) {
+        this.insertedKeys = insertedKeys;
+    }
+
+    public abstract long nextKey();
+
+    public static KeyGenerator create(String distribution, AtomicLong insertedKeys) {
+        switch (distribution) {
+            case "uniform":
+                return new Uniform(insertedKeys);
+            case "zipfian":
+                return new ScrambledZipfian(insertedKeys);
+            case "latest":
+                return new Latest(insertedKeys);
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+        }
+    }
+
+    public static String keyName(long keyNumber) {
+        return "user" + keyNumber;
+    }
+
+    static class Uniform extends KeyGenerator {
+        Uniform(AtomicLong insertedKeys) {
+            super(insertedKeys);
+        }
+
+        @Override
+        public long nextKey() {
+            return ThreadLocalRandom.current().nextLong(Math.max(1, insertedKeys.get()));
+        }
+    }
+
+    static class ScrambledZipfian extends KeyGenerator {
+        private final Zipfian zipfian;
+
+        ScrambledZipfian(AtomicLong insertedKeys) {
+            super(insertedKeys);
+            this.zipfian = new Zipfian(Math.max(1, insertedKeys.get()));
+        }
+
+        @Override
+        public long nextKey() {
+            return fnvHash(zipfian.next()) % Math.max(1, insertedKeys.get());
+        }
+
+        private static long fnvHash(long value) {
+            long hash = 0xCBF29CE484222325L;
+            for(int i = 0; i < 8; i++) {
+                hash ^= value & 0xff;
+                hash *= 0x100000001B3L;
+                value >>= 8;
+            }
+            return Math.abs(hash);
+        }
+    }
+
+    static class Latest extends KeyGenerator {
+        private final Zipfian zipfian;
+
+        Latest(AtomicLong insertedKeys) {
+            super(insertedKeys);
+            this.zipfian = new Zipfian(Math.max(1, insertedKeys.get()));
+        }
+
+        @Override
+        public long nextKey() {
+            long latest = insertedKeys.get() - 1;
+            return Math.max(0, latest - zipfian.next());
+        }
+    }
+
+    /**
+     * Zipfian distribution over [0, items) with the YCSB default constant, from
+     * "Quickly Generating Billion-Record Synthetic Databases", Gray et al.
+     */
+    static class Zipfian {
+        private static final double THETA = 0.99;
+
+        private final long items;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(long items) {
+            this.items = items;
+            this.zetan = zeta(items);
+            double zeta2 = zeta(2);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta2 / zetan);
+        }
+
+        long next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if(uz < 1.0) {
+                return 0;
+            }
+            if(uz < 1.0 + Math.pow(0.5, THETA)) {
+                return Math.min(1, items - 1);
+            }
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n) {
+            double sum = 0;
+            for(long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+    }
+}
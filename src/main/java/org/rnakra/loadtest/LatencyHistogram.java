@@ -0,0 +1,73 @@
+package org.rnakra.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records latencies in microseconds into log-linear buckets, values below SUB_BUCKETS are exact
+ * and every power of two range above is split into SUB_BUCKETS / 2 = 64 linear buckets, which keeps the error of
+ * the reported percentiles under 1/64, about 1.6%.
+ * Recording is lock free and can be done from many threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int RANGES = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(RANGES * SUB_BUCKETS);
+
+    public void recordNanos(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    public long count() {
+        long total = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile Percentile in [0, 1]
+     * @return Upper bound of the bucket holding the percentile, in microseconds
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if(total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length() - 1);
+    }
+
+    public void reset() {
+        for(int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    private static int bucket(long micros) {
+        if(micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int range = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (micros >>> range) - SUB_BUCKETS / 2;
+        return range * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int range = (bucket - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+        int subBucket = (bucket - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((long) (subBucket + 1) << range) - 1;
+    }
+}
@@ -0,0 +1,268 @@
+package org.rnakra.loadtest;
+
+import org.rnakra.core.StoreConfig;
+import org.rnakra.scheduler.MasterTask;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YCSB style load test of the store, driven through MasterTask.
+ * The store is first loaded with the configured number of records, then client threads run the workload in a
+ * closed loop for the configured duration. Throughput and p50/p99/p999 latency of every operation are printed for
+ * every interval, along with the share of the interval during which a compaction was running, followed by a summary
+ * for the whole run.
+ *
+ * Usage: LoadTest [--option=value ...]
+ *   --workload=A..F          Operation mix, see {@link Workload} (default A)
+ *   --distribution=NAME      uniform, zipfian or latest (default: the workload's distribution)
+ *   --records=N              Records loaded before the run (default 100000)
+ *   --value-size=BYTES       Size of the values written (default 100)
+ *   --threads=N              Client threads (default 16)
+ *   --duration=SECONDS       Length of the run (default 60)
+ *   --interval=SECONDS       Reporting interval (default 1)
+ *   --max-scan-length=N      Longest scan of workload E (default 100)
+ *   --directory=PATH         Data directory (default loadtest-data)
+ *   --skip-load              Run against the records already in the directory
+ *
+ * The store has no range scans, a scan of workload E reads the keys following the chosen key one by one.
+ */
+public class LoadTest {
+
+    private final Workload workload;
+    private final KeyGenerator keyGenerator;
+    private final MasterTask masterTask;
+    // keys are inserted in sequence order, but the generators only see the keys up to the first unacknowledged insert
+    private final AtomicLong insertKeySequence;
+    private final AtomicLong insertedKeys;
+    private final TreeSet<Long> acknowledgedOutOfOrder = new TreeSet<>();
+    private final int valueSize;
+    private final int maxScanLength;
+    private final Map<Workload.Operation, LatencyHistogram> intervalHistograms = new EnumMap<>(Workload.Operation.class);
+    private final Map<Workload.Operation, LatencyHistogram> totalHistograms = new EnumMap<>(Workload.Operation.class);
+    private final AtomicLong failures = new AtomicLong();
+    // failures caused by the store shedding load, out of all the failures
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile boolean running = true;
+
+    LoadTest(Workload workload, KeyGenerator keyGenerator, MasterTask masterTask, AtomicLong insertedKeys, int valueSize, int maxScanLength) {
+        this.workload = workload;
+        this.keyGenerator = keyGenerator;
+        this.masterTask = masterTask;
+        this.insertKeySequence = new AtomicLong(insertedKeys.get());
+        this.insertedKeys = insertedKeys;
+        this.valueSize = valueSize;
+        this.maxScanLength = maxScanLength;
+        for(Workload.Operation operation: Workload.Operation.values()) {
+            intervalHistograms.put(operation, new LatencyHistogram());
+            totalHistograms.put(operation, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Workload workload = Workload.valueOf(options.getOrDefault("workload", "A").toUpperCase());
+        String distribution = options.getOrDefault("distribution", workload.getDefaultDistribution());
+        long records = Long.parseLong(options.getOrDefault("records", "100000"));
+        int valueSize = Integer.parseInt(options.getOrDefault("value-size", "100"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int interval = Integer.parseInt(options.getOrDefault("interval", "1"));
+        int maxScanLength = Integer.parseInt(options.getOrDefault("max-scan-length", "100"));
+        String directory = options.getOrDefault("directory", "loadtest-data");
+
+        MasterTask masterTask = new MasterTask(new StoreConfig().setDirectory(directory));
+        AtomicLong insertedKeys = new AtomicLong(records);
+        if(!options.containsKey("skip-load")) {
+            load(masterTask, records, valueSize);
+        }
+
+        System.out.println("workload=" + workload + " distribution=" + distribution + " records=" + records
+                + " valueSize=" + valueSize + " threads=" + threads + " duration=" + duration + "s");
+        LoadTest loadTest = new LoadTest(workload, KeyGenerator.create(distribution, insertedKeys), masterTask,
+                insertedKeys, valueSize, maxScanLength);
+        loadTest.run(threads, duration, interval);
+
+        masterTask.close();
+        System.exit(0);
+    }
+
+    private static void load(MasterTask masterTask, long records, int valueSize) throws Exception {
+        System.out.println("Loading " + records + " records");
+        long start = System.nanoTime();
+        // bounded number of writes in flight, so the write queue does not grow without limit
+        Semaphore inFlight = new Semaphore(1000);
+        for(long i = 0; i < records; i++) {
+            inFlight.acquire();
+            masterTask.submitWriteTask(KeyGenerator.keyName(i), randomValue(valueSize))
+                    .whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquire(1000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Loaded %d records in %.1fs (%.0f ops/s)%n", records, seconds, records / seconds);
+    }
+
+    void run(int threads, int durationSeconds, int intervalSeconds) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>();
+        for(int i = 0; i < threads; i++) {
+            Thread client = new Thread(this::runClient, "loadtest-client-" + i);
+            clients.add(client);
+            client.start();
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(intervalSeconds);
+        long samples = 0;
+        long compactingSamples = 0;
+        while(System.nanoTime() < end) {
+            Thread.sleep(10);
+            // compaction is sampled, so the report shows how much of the interval overlapped with it
+            samples++;
+            if(masterTask.isMergeInProgress()) {
+                compactingSamples++;
+            }
+            if(System.nanoTime() >= nextReport) {
+                report((nextReport - start) / 1e9, intervalSeconds, intervalHistograms, 100.0 * compactingSamples / samples);
+                for(LatencyHistogram histogram: intervalHistograms.values()) {
+                    histogram.reset();
+                }
+                samples = 0;
+                compactingSamples = 0;
+                nextReport += TimeUnit.SECONDS.toNanos(intervalSeconds);
+            }
+        }
+        running = false;
+        for(Thread client: clients) {
+            client.join();
+        }
+        System.out.println("---- summary ----");
+        report(durationSeconds, durationSeconds, totalHistograms, -1);
+        System.out.println("failures=" + failures.get() + " rejected=" + rejected.get() + " timedOut=" + timedOut.get());
+    }
+
+    private void report(double time, double seconds, Map<Workload.Operation, LatencyHistogram> histograms, double compactingPercent) {
+        StringBuilder line = new StringBuilder(String.format("[%6.1fs]", time));
+        long totalOps = 0;
+        for(Map.Entry<Workload.Operation, LatencyHistogram> entry: histograms.entrySet()) {
+            long count = entry.getValue().count();
+            if(count == 0) {
+                continue;
+            }
+            totalOps += count;
+            line.append(String.format(" %s ops/s=%.0f p50=%dus p99=%dus p999=%dus |", entry.getKey(), count / seconds,
+                    entry.getValue().percentile(0.50), entry.getValue().percentile(0.99), entry.getValue().percentile(0.999)));
+        }
+        line.append(String.format(" total ops/s=%.0f", totalOps / seconds));
+        if(compactingPercent >= 0) {
+            line.append(String.format(" compacting=%.0f%%", compactingPercent));
+        }
+        System.out.println(line);
+    }
+
+    private void runClient() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while(running) {
+            Workload.Operation operation = workload.chooseOperation(random.nextDouble());
+            long start = System.nanoTime();
+            try {
+                execute(operation, random);
+                long latency = System.nanoTime() - start;
+                intervalHistograms.get(operation).recordNanos(latency);
+                totalHistograms.get(operation).recordNanos(latency);
+            } catch (ExecutionException e) {
+                failures.incrementAndGet();
+                if(e.getCause() instanceof RejectedExecutionException) {
+                    rejected.incrementAndGet();
+                } else if(e.getCause() instanceof TimeoutException) {
+                    timedOut.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private void execute(Workload.Operation operation, ThreadLocalRandom random) throws Exception {
+        switch (operation) {
+            case READ:
+                masterTask.submitReadTask(KeyGenerator.keyName(keyGenerator.nextKey())).get();
+                break;
+            case UPDATE:
+                masterTask.submitWriteTask(KeyGenerator.keyName(keyGenerator.nextKey()), randomValue(valueSize)).get();
+                break;
+            case INSERT:
+                long keyNumber = insertKeySequence.getAndIncrement();
+                try {
+                    masterTask.submitWriteTask(KeyGenerator.keyName(keyNumber), randomValue(valueSize)).get();
+                } finally {
+                    // a failed insert is acknowledged too, otherwise the keys after it would never become visible
+                    acknowledgeInsert(keyNumber);
+                }
+                break;
+            case SCAN:
+                long first = keyGenerator.nextKey();
+                int length = 1 + random.nextInt(maxScanLength);
+                List<CompletableFuture<String>> reads = new ArrayList<>(length);
+                for(long key = first; key < first + length; key++) {
+                    reads.add(masterTask.submitReadTask(KeyGenerator.keyName(key)));
+                }
+                CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).get();
+                break;
+            case READ_MODIFY_WRITE:
+                String key = KeyGenerator.keyName(keyGenerator.nextKey());
+                String current = masterTask.submitReadTask(key).get();
+                masterTask.submitCompareAndSetTask(key, current, randomValue(valueSize)).get();
+                break;
+        }
+    }
+
+    /**
+     * Makes the key visible to the generators once all the keys before it are acknowledged, so a generator never
+     * picks a key whose insert is still in flight.
+     */
+    private synchronized void acknowledgeInsert(long keyNumber) {
+        acknowledgedOutOfOrder.add(keyNumber);
+        while(acknowledgedOutOfOrder.remove(insertedKeys.get())) {
+            insertedKeys.incrementAndGet();
+        }
+    }
+
+    private static String randomValue(int valueSize) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] value = new char[valueSize];
+        for(int i = 0; i < valueSize; i++) {
+            value[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(value);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String arg: args) {
+            if(!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if(separator < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+}
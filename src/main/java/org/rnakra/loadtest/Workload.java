@@ -0,0 +1,49 @@
+package org.rnakra.loadtest;
+
+/**
+ * Standard YCSB core workloads, as the proportion of each operation and the default key distribution.
+ * A: update heavy, B: read mostly, C: read only, D: read latest, E: short scans, F: read-modify-write
+ */
+public enum Workload {
+    A(0.50, 0.50, 0.00, 0.00, 0.00, "zipfian"),
+    B(0.95, 0.05, 0.00, 0.00, 0.00, "zipfian"),
+    C(1.00, 0.00, 0.00, 0.00, 0.00, "zipfian"),
+    D(0.95, 0.00, 0.05, 0.00, 0.00, "latest"),
+    E(0.00, 0.00, 0.05, 0.95, 0.00, "zipfian"),
+    F(0.50, 0.00, 0.00, 0.00, 0.50, "zipfian");
+
+    public enum Operation {
+        READ,
+        UPDATE,
+        INSERT,
+        SCAN,
+        READ_MODIFY_WRITE
+    }
+
+    private final double[] proportions;
+    private final String defaultDistribution;
+
+    Workload(double read, double update, double insert, double scan, double readModifyWrite, String defaultDistribution) {
+        this.proportions = new double[]{read, update, insert, scan, readModifyWrite};
+        this.defaultDistribution = defaultDistribution;
+    }
+
+    public String getDefaultDistribution() {
+        return defaultDistribution;
+    }
+
+    /**
+     * Picks the operation for a uniformly distributed random number in [0, 1).
+     */
+    public Operation chooseOperation(double random) {
+        Operation[] operations = Operation.values();
+        double cumulative = 0;
+        for(int i = 0; i < operations.length; i++) {
+            cumulative += proportions[i];
+            if(random < cumulative) {
+                return operations[i];
+            }
+        }
+        return Operation.READ;
+    }
+}
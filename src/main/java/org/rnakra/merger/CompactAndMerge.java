@@ -1,15 +1,24 @@
 package org.rnakra.merger;
 
+import org.rnakra.core.BlobFilesManager;
+import org.rnakra.core.BlobIndexLocation;
 import org.rnakra.core.DataFilesManager;
 import org.rnakra.core.IndexLocation;
+import org.rnakra.core.StoreConfig;
 import org.rnakra.io.DataFile;
+import org.rnakra.io.SparseIndex;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Summary: Race Condition Handling in Key-Value Store Merge Process
@@ -33,8 +42,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * 3. Index Update Strategy:
  *    - New merged file is made available before index updates begin
- *    - Updates index only if it points to same or older file (timestamp comparison)
- *    - If index points to newer file (indicating concurrent write), preserves that entry
+ *    - Updates index only if it still points to the location the entry was copied from (atomic replace)
+ *    - If index points to a newer location (indicating concurrent write), preserves that entry
  *    - Ensures no data loss during concurrent operations
  * 
  * File Naming Example:
@@ -45,7 +54,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * 1. Version numbers prevent file content corruption during merges
  * 2. Soft deletion ensures ongoing reads complete successfully
  * 3. Atomic index updates preserve consistency
- * 4. Timestamp comparisons prevent data loss from concurrent writes
+ * 4. Conditional index replacement prevents data loss from concurrent writes
+ *
+ * Deletes and Batches:
+ * - Deleted keys are not in the index, so their tombstones (and older values) are dropped. This is safe as the
+ *   two oldest files are merged, there is no older file where the key could be resurrected from
+ * - Live entries of a batch are copied as individual entries, the batch was already recovered as a whole and the
+ *   source files are only soft deleted after the merged file is completely written
+ *
+ * Out of Core Index Mode:
+ * - Sealed files are first sorted one at a time, oldest first: the live entries of the file (deletes included,
+ *   unless nothing is older) are written in key order with a sparse index, and their keys are removed from the
+ *   index, again only if it still points to where they were copied from
+ * - Once every sealed file is sorted, the two oldest are merged by walking both in key order, the newer entry of a
+ *   key wins. Deletes are dropped, and so are keys in the index, which were written again after both files
+ * - Sorted files hold a reference to every blob they point to, retained once the file is added and released once
+ *   the file is replaced. An entry replaced by a newer sorted file releases its blob as soon as the newer file is
+ *   added, so blobs of overwritten keys are not held till the older file gets merged, which may never happen
  */
 
 public class CompactAndMerge {
@@ -65,20 +90,13 @@ public class CompactAndMerge {
             DataFile fileToDeleteName = dataFile1.getFileName().compareTo(dataFile2.getFileName()) > 0 ? dataFile2 : dataFile1;
             // write to a temporary file first , which will be renamed afterward, to avoid data loss in case process crashes
             ConcurrentHashMap<String, IndexLocation> tempMemoryIndex = new ConcurrentHashMap<String, IndexLocation>();
+            // location of the key in the merged files at the time of copying, index is only moved if it still points there
+            Map<String, IndexLocation> copiedFromIndex = new HashMap<>();
 
-            // extract version number from the file to keep, if file does not have a integer version number, set it to 0
-
-            int version_number = 0;
-            try {
-                version_number = Integer.parseInt(fileToKeepName.getFileName().split("\\.")[1]);
-            } catch (NumberFormatException e) {
-                // If the version number is not an integer, set it to 0
-            }
-
-            String newfileName = Long.toString(Long.parseLong(fileToKeepName.getFileName().split("\\.")[0])) + "."+ ((version_number + 1)) +".db";
+            String newfileName = mergedFileName(fileToKeepName);
 
             // System.out.println("Creating new file: " + newfileName);
-            File tempFile = new File("data",newfileName);
+            File tempFile = dataFilesManager.mergedFileLocation(newfileName, fileToKeepName);
 
             if(!tempFile.createNewFile()) {
                 System.out.println("Failed to create File " + tempFile.getName());
@@ -86,20 +104,28 @@ public class CompactAndMerge {
             } else {
                 // System.out.println("Created file" + tempFile.getName());
             }
-            DataFile tempDataFile = new DataFile(tempFile);
+            DataFile tempDataFile = dataFilesManager.createDataFile(tempFile);
+            // merged file is written in large sequential chunks as well
+            tempDataFile.setWriteBuffer(ByteBuffer.allocate(dataFilesManager.getConfig().getWriteBufferSize()), StoreConfig.DurabilityMode.BUFFERED);
             for(DataFile.Entry entry: entries1) {
-                if(memoryIndex.get(entry.key).getFileName().equals(dataFile1.getFileName()) && memoryIndex.get(entry.key).getOffset() == entry.offset) {
-                    IndexLocation indexLocation = tempDataFile.appendEntryWhileMerging(entry.key, entry.value);
-                    tempMemoryIndex.put(entry.key, new IndexLocation(tempDataFile.getFileName(), indexLocation.getOffset()));
+                IndexLocation current = memoryIndex.get(entry.key);
+                if(current != null && current.getFileId() == dataFile1.getFileId() && current.getOffset() == entry.offset) {
+                    IndexLocation indexLocation = tempDataFile.appendEntryWhileMerging(entry);
+                    tempMemoryIndex.put(entry.key, indexLocation);
+                    copiedFromIndex.put(entry.key, current);
                 }
             }
             for(DataFile.Entry entry: entries2) {
-                if(memoryIndex.get(entry.key).getFileName().equals(dataFile2.getFileName()) && memoryIndex.get(entry.key).getOffset() == entry.offset) {
-                    IndexLocation indexLocation = tempDataFile.appendEntryWhileMerging(entry.key, entry.value);
-                    tempMemoryIndex.put(entry.key, new IndexLocation(tempDataFile.getFileName(), indexLocation.getOffset()));
+                IndexLocation current = memoryIndex.get(entry.key);
+                if(current != null && current.getFileId() == dataFile2.getFileId() && current.getOffset() == entry.offset) {
+                    IndexLocation indexLocation = tempDataFile.appendEntryWhileMerging(entry);
+                    tempMemoryIndex.put(entry.key, indexLocation);
+                    copiedFromIndex.put(entry.key, current);
                 }
             }
 
+            tempDataFile.seal();
+
             // add the merged file to the data file manager, so that it is ready to be used
             // and then only update the index, we have both the merged files and the unmerged file available
             // tile the index update is done, in case we get read request in b/w and index is not updated yet it can be
@@ -109,16 +135,19 @@ public class CompactAndMerge {
 
             // update the main index
             for(Map.Entry<String,IndexLocation> entry: tempMemoryIndex.entrySet()) {
-
-                if(memoryIndex.get(entry.getKey()).getFileName().compareTo(entry.getValue().getFileName()) <= 0) {
-                    memoryIndex.put(entry.getKey(), entry.getValue());
-                }
+                // if the key was written again while merging, index points to the newer location and is preserved
+                memoryIndex.replace(entry.getKey(), copiedFromIndex.get(entry.getKey()), entry.getValue());
             }
 
             // Can't immediately delete the files because there might be read requests in between
 
+            // older file first, so it is never left behind on its own when the newer one (which can hold tombstones
+            // for its keys) is cleaned up
+            // the newer file is only marked once the mark of the older one is on disk
+            if(!fileToDeleteName.softdeleteFile()) {
+                throw new IOException("Failed to mark file " + fileToDeleteName.getFileName() + " as deleted");
+            }
             fileToKeepName.softdeleteFile(); // Mark the file as deleted
-            fileToDeleteName.softdeleteFile(); // Mark the file as deleted
 
             // System.out.println("MERGE AND COMPACT SUCCESSFUL");
         } catch (IOException | NoSuchAlgorithmException e) {
@@ -126,4 +155,224 @@ public class CompactAndMerge {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Rewrites an unsorted file sorted by key, for the out of core index mode. The file should be the oldest unsorted
+     * file, so every file older than it is sorted.
+     *
+     * @param memoryIndex The concurrent hash map storing key to file location mappings
+     * @param dataFile File to sort
+     * @param oldest Whether no file is older than this one, its deletes are then dropped
+     * @param dataFilesManager Manager handling active data files for reads/writes
+     * @param blobFilesManager Manager of the blobs referenced by the file
+     */
+    public static synchronized void sort(ConcurrentHashMap<String, IndexLocation> memoryIndex, DataFile dataFile, boolean oldest,
+                                         DataFilesManager dataFilesManager, BlobFilesManager blobFilesManager) {
+        try {
+            TreeMap<String, DataFile.Entry> liveEntries = new TreeMap<>();
+            // location of the key in the file at the time of copying, key is only removed from the index if it still points there
+            Map<String, IndexLocation> copiedFromIndex = new HashMap<>();
+            for(DataFile.Entry entry: dataFile.readEntries()) {
+                IndexLocation current = memoryIndex.get(entry.key);
+                if(current != null && current.getFileId() == dataFile.getFileId() && current.getOffset() == entry.offset) {
+                    copiedFromIndex.put(entry.key, current);
+                    if(!entry.isTombstone() || !oldest) {
+                        liveEntries.put(entry.key, entry);
+                    }
+                }
+            }
+
+            // every sorted file is older than the oldest unsorted file
+            List<DataFile> olderSortedFiles = dataFilesManager.getFilesForMerging().stream()
+                    .filter(DataFile::isSorted).collect(Collectors.toList());
+
+            SortedFileWriter writer = SortedFileWriter.create(mergedFileName(dataFile), dataFile, liveEntries.size(), dataFilesManager);
+            if(writer == null) {
+                return;
+            }
+            for(DataFile.Entry entry: liveEntries.values()) {
+                writer.append(entry);
+            }
+            DataFile sortedFile = writer.finish();
+
+            // sorted file is available before the keys leave the index, so a key is always found in one of them
+            dataFilesManager.addDataFile(sortedFile);
+            retainBlobs(sortedFile, blobFilesManager);
+            releaseSupersededBlobs(liveEntries.keySet(), olderSortedFiles, blobFilesManager);
+
+            for(Map.Entry<String, IndexLocation> entry: copiedFromIndex.entrySet()) {
+                // if the key was written again while sorting, index points to the newer location and is preserved
+                if(memoryIndex.remove(entry.getKey(), entry.getValue()) && entry.getValue() instanceof BlobIndexLocation) {
+                    blobFilesManager.release(((BlobIndexLocation) entry.getValue()).getBlobId());
+                }
+            }
+
+            dataFile.softdeleteFile();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("CompactAndMerge Exception: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merges two sorted files into a new sorted file, for the out of core index mode. The files should be the two
+     * oldest files of the store.
+     *
+     * @param memoryIndex The concurrent hash map storing key to file location mappings
+     * @param dataFile1 First file to merge
+     * @param dataFile2 Second file to merge
+     * @param dataFilesManager Manager handling active data files for reads/writes
+     * @param blobFilesManager Manager of the blobs referenced by the files
+     */
+    public static synchronized void mergeSorted(ConcurrentHashMap<String, IndexLocation> memoryIndex, DataFile dataFile1, DataFile dataFile2,
+                                                DataFilesManager dataFilesManager, BlobFilesManager blobFilesManager) {
+        DataFile newerFile = dataFile1.getFileName().compareTo(dataFile2.getFileName()) > 0 ? dataFile1 : dataFile2;
+        DataFile olderFile = dataFile1.getFileName().compareTo(dataFile2.getFileName()) > 0 ? dataFile2 : dataFile1;
+        long expectedKeys = olderFile.getSparseIndex().getEntryCount() + newerFile.getSparseIndex().getEntryCount();
+        try(DataFile.EntryReader olderEntries = olderFile.openEntryReader(); DataFile.EntryReader newerEntries = newerFile.openEntryReader()) {
+            SortedFileWriter writer = SortedFileWriter.create(mergedFileName(newerFile), newerFile, expectedKeys, dataFilesManager);
+            if(writer == null) {
+                return;
+            }
+            // both files are in key order, so they are merged an entry at a time without holding them in memory
+            DataFile.Entry olderEntry = olderEntries.next();
+            DataFile.Entry newerEntry = newerEntries.next();
+            while(olderEntry != null || newerEntry != null) {
+                int comparison = olderEntry == null ? 1 : newerEntry == null ? -1 : olderEntry.key.compareTo(newerEntry.key);
+                DataFile.Entry entry;
+                if(comparison < 0) {
+                    entry = olderEntry;
+                    olderEntry = olderEntries.next();
+                } else {
+                    entry = newerEntry;
+                    newerEntry = newerEntries.next();
+                    if(comparison == 0) {
+                        olderEntry = olderEntries.next();
+                    }
+                }
+                // no older file is left for a delete to hide the key in, and keys in the index are newer than both files
+                if(entry.isTombstone() || memoryIndex.containsKey(entry.key)) {
+                    continue;
+                }
+                writer.append(entry);
+            }
+            DataFile mergedFile = writer.finish();
+
+            dataFilesManager.addDataFile(mergedFile);
+            retainBlobs(mergedFile, blobFilesManager);
+            releaseBlobs(olderFile, blobFilesManager);
+            releaseBlobs(newerFile, blobFilesManager);
+
+            // older file first, so the newer one (which can hold deletes for its keys) is never skipped on its own
+            if(!olderFile.softdeleteFile()) {
+                throw new IOException("Failed to mark file " + olderFile.getFileName() + " as deleted");
+            }
+            newerFile.softdeleteFile();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("CompactAndMerge Exception: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return Name of the file a merge into the given file produces, its timestamp with the next version number
+     */
+    private static String mergedFileName(DataFile fileToKeep) {
+        // extract version number from the file to keep, if file does not have a integer version number, set it to 0
+        int version_number = 0;
+        try {
+            version_number = Integer.parseInt(fileToKeep.getFileName().split("\\.")[1]);
+        } catch (NumberFormatException e) {
+            // If the version number is not an integer, set it to 0
+        }
+        return Long.toString(Long.parseLong(fileToKeep.getFileName().split("\\.")[0])) + "."+ ((version_number + 1)) +".db";
+    }
+
+    private static void retainBlobs(DataFile sortedFile, BlobFilesManager blobFilesManager) {
+        for(long blobId: sortedFile.getSparseIndex().getBlobIds()) {
+            blobFilesManager.retain(blobId);
+        }
+    }
+
+    private static void releaseBlobs(DataFile sortedFile, BlobFilesManager blobFilesManager) {
+        for(long blobId: sortedFile.getRetainedBlobIds()) {
+            blobFilesManager.release(blobId);
+        }
+    }
+
+    /**
+     * Releases the blobs of the older versions of the keys, which a new sorted file replaced. Only the newest older
+     * version is looked at, versions older than it were released when it was sorted.
+     * @param olderSortedFiles Sorted files older than the new one, oldest first
+     */
+    private static void releaseSupersededBlobs(Set<String> keys, List<DataFile> olderSortedFiles, BlobFilesManager blobFilesManager)
+            throws IOException {
+        if(olderSortedFiles.stream().allMatch(file -> file.getRetainedBlobIds().isEmpty())) {
+            return;
+        }
+        for(String key: keys) {
+            for(int i = olderSortedFiles.size() - 1; i >= 0; i--) {
+                DataFile olderFile = olderSortedFiles.get(i);
+                if(!olderFile.getSparseIndex().mightContain(key)) {
+                    continue;
+                }
+                DataFile.Entry olderEntry = olderFile.findEntry(key);
+                if(olderEntry == null) {
+                    continue;
+                }
+                if(olderEntry.isBlobReference()) {
+                    olderFile.supersedeBlob(olderEntry.blobId);
+                    blobFilesManager.release(olderEntry.blobId);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes a sorted file along with its sparse index, entries should be appended in ascending order of keys.
+     */
+    private static class SortedFileWriter {
+        private final DataFile dataFile;
+        private final SparseIndex.Builder sparseIndex;
+        private final DataFilesManager dataFilesManager;
+
+        private SortedFileWriter(DataFile dataFile, SparseIndex.Builder sparseIndex, DataFilesManager dataFilesManager) {
+            this.dataFile = dataFile;
+            this.sparseIndex = sparseIndex;
+            this.dataFilesManager = dataFilesManager;
+        }
+
+        /**
+         * @param newestSource Newer of the files being rewritten, which decides where the file is placed
+         * @return The writer, null if the file could not be created
+         */
+        static SortedFileWriter create(String fileName, DataFile newestSource, long expectedKeys, DataFilesManager dataFilesManager)
+                throws IOException, NoSuchAlgorithmException {
+            File file = dataFilesManager.mergedFileLocation(fileName, newestSource);
+            if(!file.createNewFile()) {
+                System.out.println("Failed to create File " + file.getName());
+                return null;
+            }
+            StoreConfig config = dataFilesManager.getConfig();
+            DataFile dataFile = dataFilesManager.createDataFile(file);
+            dataFile.setWriteBuffer(ByteBuffer.allocate(config.getWriteBufferSize()), StoreConfig.DurabilityMode.BUFFERED);
+            return new SortedFileWriter(dataFile, new SparseIndex.Builder(file, expectedKeys, config.getBloomFilterBitsPerKey(),
+                    config.getSparseIndexInterval()), dataFilesManager);
+        }
+
+        void append(DataFile.Entry entry) throws IOException {
+            IndexLocation location = dataFile.appendEntryWhileMerging(entry);
+            sparseIndex.add(entry.key, location.getOffset(), entry.isBlobReference() ? entry.blobId : -1);
+        }
+
+        /**
+         * Seals the file and writes its sparse index, the file is not added to the data files manager yet.
+         */
+        DataFile finish() throws IOException, NoSuchAlgorithmException {
+            dataFile.seal();
+            dataFile.setSparseIndex(sparseIndex.finish(dataFile.length(), dataFilesManager.getFileHandleCache()));
+            return dataFile;
+        }
+    }
 }
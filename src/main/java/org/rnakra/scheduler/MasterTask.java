@@ -1,76 +1,415 @@
 package org.rnakra.scheduler;
 
-import org.rnakra.core.DataFilesManager;
 import org.rnakra.core.KeyValueStore;
 import org.rnakra.core.KeyValueStoreImpl;
-import org.rnakra.merger.CompactAndMerge;
+import org.rnakra.core.StoreConfig;
+import org.rnakra.core.Watch;
+import org.rnakra.core.WatchCancelledException;
+import org.rnakra.core.WriteBatch;
+import org.rnakra.io.FileHandleCache;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * MasterTask schedules the requests on the store: reads run on a pool of reader threads, writes on a single writer
+ * thread and compaction on a low priority merge thread.
+ *
+ * The read, write and stream queues are bounded, a request which does not fit is not admitted and its future fails with a
+ * RejectedExecutionException, straight away or after waiting for space depending on the overload policy. Requests
+ * submitted once the store is closing fail with a RejectedExecutionException as well, without being queued.
+ * Requests can carry a deadline, one which is still queued when its deadline passes is dropped and its future fails
+ * with a TimeoutException, so a backlog is not worked off on requests whose callers have given up.
+ * Reads are prioritised over compaction, a merge waits till the read queue is short before it starts.
+ *
+ * The store is split into {@link Namespace}s which share the queues and executors. The submit methods of MasterTask
+ * work on the default namespace, which lives in the data directory itself, other namespaces live under
+ * data/namespaces/name.
+ */
 public class MasterTask {
+    public static final String DEFAULT_NAMESPACE = "default";
+    private static final String NAMESPACES_DIRECTORY = "namespaces";
     private final int NUM_READ_THREADS = 5;
-    private Queue<ReadTask> readQueue = new ConcurrentLinkedQueue<>();
-    private final Queue<WriteTask> writeQueue = new LinkedList<>(); // Guarded by a lock
+    private final int NUM_STREAM_THREADS = 2;
+    private static final long MERGE_BACKOFF_MILLIS = 10;
+    private final BlockingQueue<ReadTask<?>> readQueue;
+    private final BlockingQueue<WriteTask<?>> writeQueue;
+    // values being copied from streams, before their puts are queued for the writer
+    private final BlockingQueue<WriteTask<?>> streamQueue;
     private ExecutorService readExecutor = Executors.newFixedThreadPool(NUM_READ_THREADS);
     private ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    // copies streamed values to blob files, so the writer thread only writes their references
+    private ExecutorService streamExecutor = Executors.newFixedThreadPool(NUM_STREAM_THREADS);
+    private ExecutorService mergeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "merge");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
 
-    private final KeyValueStore keyValueStore;
+    private final StoreConfig config;
+    // one cache for the files of all namespaces, so the open file limit holds for the whole store
+    private final FileHandleCache fileHandleCache;
+    // flushes and cleanups of all namespaces, one thread whatever the number of namespaces
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
+    // set once close starts, tasks submitted from then on are rejected without being queued
+    private volatile boolean closed = false;
+    private final Namespace defaultNamespace;
 
     public MasterTask() throws FileNotFoundException {
-        keyValueStore = new KeyValueStoreImpl();
+        this(new StoreConfig());
+    }
+
+    /**
+     * @param config Config of the default namespace, the queue limits and the overload policy apply to all namespaces
+     */
+    public MasterTask(StoreConfig config) throws FileNotFoundException {
+        this.config = config;
+        this.readQueue = new LinkedBlockingQueue<>(config.getMaxQueuedReads());
+        this.writeQueue = new LinkedBlockingQueue<>(config.getMaxQueuedWrites());
+        this.streamQueue = new LinkedBlockingQueue<>(config.getMaxQueuedWrites());
+        this.fileHandleCache = new FileHandleCache(config.getMaxOpenFiles());
+        this.defaultNamespace = new Namespace(DEFAULT_NAMESPACE, config, new KeyValueStoreImpl(config, fileHandleCache, scheduler), this);
+        namespaces.put(DEFAULT_NAMESPACE, defaultNamespace);
+    }
+
+    /**
+     * Opens the namespace with the config of the default namespace if it is not open, creating it if it does not exist.
+     */
+    public Namespace getNamespace(String name) throws FileNotFoundException {
+        Namespace namespace = namespaces.get(name);
+        if(namespace != null) {
+            return namespace;
+        }
+        // checked again under the lock, another caller may have opened it in the meantime
+        synchronized(this) {
+            namespace = namespaces.get(name);
+            if(namespace != null) {
+                return namespace;
+            }
+            return openNamespace(name, config);
+        }
+    }
+
+    /**
+     * Opens the namespace with its own tuning, creating it if it does not exist. The directories and the open file
+     * limit of the config are ignored, the namespace always lives under the directories of the store and shares
+     * its file handles.
+     * @throws IllegalStateException if the namespace is already open
+     */
+    public synchronized Namespace openNamespace(String name, StoreConfig namespaceConfig) throws FileNotFoundException {
+        if(!name.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid namespace name: " + name);
+        }
+        if(namespaces.containsKey(name)) {
+            throw new IllegalStateException("Namespace already open: " + name);
+        }
+        // namespaces keep their files in a subdirectory of each of the directories of the store
+        StoreConfig directories = config.withSubdirectory(new File(NAMESPACES_DIRECTORY, name).getPath());
+        StoreConfig storeConfig = namespaceConfig.copy()
+                .setDirectory(directories.getDirectory())
+                .setDataDirectories(directories.getDataDirectories())
+                .setColdDirectory(directories.getColdDirectory());
+        Namespace namespace = new Namespace(name, storeConfig, new KeyValueStoreImpl(storeConfig, fileHandleCache, scheduler), this);
+        namespaces.put(name, namespace);
+        return namespace;
+    }
+
+    /**
+     * @return Names of the namespaces on disk and the open ones, including the default namespace
+     */
+    public List<String> listNamespaces() {
+        List<String> names = new ArrayList<>(namespaces.keySet());
+        File[] directories = new File(config.getDirectory(), NAMESPACES_DIRECTORY).listFiles(File::isDirectory);
+        if(directories != null) {
+            for(File directory: directories) {
+                if(!names.contains(directory.getName())) {
+                    names.add(directory.getName());
+                }
+            }
+        }
+        return names;
     }
 
     public CompletableFuture<String> submitReadTask(String key) {
-        CompletableFuture<String> completableFuture = new CompletableFuture<>();
-        readQueue.add(new ReadTask(key,keyValueStore,completableFuture));
-        readExecutor.submit(this::processReadTask);
-        return completableFuture;
+        return defaultNamespace.submitReadTask(key);
+    }
+
+    /**
+     * @param timeoutMillis The read fails with a TimeoutException if it is still queued after this long, 0 means no deadline
+     */
+    public CompletableFuture<String> submitReadTask(String key, long timeoutMillis) {
+        return defaultNamespace.submitReadTask(key, timeoutMillis);
     }
 
     public CompletableFuture<Void> submitWriteTask(String key, String value) {
-        CompletableFuture<Void> completableFuture = new CompletableFuture<>();
-        writeQueue.add(new WriteTask(key, value, keyValueStore, completableFuture));
-        writeExecutor.submit(this::processWriteTask);
-        int random_choice = (int)(Math.random() * 1000.0);
-        if(random_choice < 10) {
-            submitMergeTask();
+        return defaultNamespace.submitWriteTask(key, value);
+    }
+
+    /**
+     * @param timeoutMillis The put fails with a TimeoutException if it is still queued after this long, 0 means no deadline
+     */
+    public CompletableFuture<Void> submitWriteTask(String key, String value, long timeoutMillis) {
+        return defaultNamespace.submitWriteTask(key, value, timeoutMillis);
+    }
+
+    /**
+     * Puts a value read from the stream, values above the blob threshold are written to a blob file by a stream
+     * thread first and never held in memory as a whole. The stream is not closed.
+     */
+    public CompletableFuture<Void> submitStreamWriteTask(String key, InputStream value) {
+        return defaultNamespace.submitStreamWriteTask(key, value);
+    }
+
+    /**
+     * Opens a stream over the value of the key, completes with null if the key is not present.
+     * The caller should close the stream.
+     */
+    public CompletableFuture<InputStream> submitStreamReadTask(String key) {
+        return defaultNamespace.submitStreamReadTask(key);
+    }
+
+    public CompletableFuture<Void> submitDeleteTask(String key) {
+        return defaultNamespace.submitDeleteTask(key);
+    }
+
+    /**
+     * Applies the puts and deletes of the batch atomically, the batch should not be modified after submitting.
+     */
+    public CompletableFuture<Void> submitWriteBatch(WriteBatch batch) {
+        return defaultNamespace.submitWriteBatch(batch);
+    }
+
+    /**
+     * Atomically sets the value of the key if its current value is expected, null expected means absent.
+     */
+    public CompletableFuture<Boolean> submitCompareAndSetTask(String key, String expected, String newValue) {
+        return defaultNamespace.submitCompareAndSetTask(key, expected, newValue);
+    }
+
+    /**
+     * Atomically sets the value of the key if it is not present.
+     */
+    public CompletableFuture<Boolean> submitPutIfAbsentTask(String key, String value) {
+        return defaultNamespace.submitPutIfAbsentTask(key, value);
+    }
+
+    /**
+     * Atomically adds delta to the numeric value of the key, completes with the incremented value.
+     */
+    public CompletableFuture<Long> submitIncrementTask(String key, long delta) {
+        return defaultNamespace.submitIncrementTask(key, delta);
+    }
+
+    /**
+     * Streams the committed puts and deletes to keys of the default namespace with the prefix.
+     * @param fromSequence Sequence of the first change to deliver, negative to start at the next change
+     * @throws WatchCancelledException if changes from fromSequence are no longer held
+     */
+    public Watch watch(String prefix, long fromSequence) throws WatchCancelledException {
+        return defaultNamespace.watch(prefix, fromSequence);
+    }
+
+    /**
+     * Queues a merge of the default namespace on the merge thread, the future completes once it has run.
+     */
+    public CompletableFuture<Void> submitMergeTask() {
+        return defaultNamespace.submitMergeTask();
+    }
+
+    /**
+     * @return true if a merge is running in any of the namespaces
+     */
+    public boolean isMergeInProgress() {
+        for(Namespace namespace: namespaces.values()) {
+            if(namespace.isMergeInProgress()) {
+                return true;
+            }
         }
-        return completableFuture;
+        return false;
     }
 
+    <T> CompletableFuture<T> scheduleRead(ReadTask<T> readTask, long timeoutMillis) {
+        if(closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+        }
+        readTask.setTimeout(timeoutMillis);
+        if(admit(readQueue, readTask, readTask.getCompletableFuture())) {
+            dispatch(readExecutor, this::processReadTask, readQueue, readTask, readTask.getCompletableFuture());
+        }
+        return readTask.getCompletableFuture();
+    }
+
+    <T> CompletableFuture<T> scheduleWrite(Namespace namespace, WriteTask<T> writeTask, long timeoutMillis) {
+        if(closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+        }
+        writeTask.setTimeout(timeoutMillis);
+        if(!admit(writeQueue, writeTask, writeTask.getCompletableFuture())
+                || !dispatch(writeExecutor, this::processWriteTask, writeQueue, writeTask, writeTask.getCompletableFuture())) {
+            return writeTask.getCompletableFuture();
+        }
+        namespace.afterWrite();
+        return writeTask.getCompletableFuture();
+    }
+
+    /**
+     * Queues the copy of a streamed value for a stream thread, it is bounded by the write queue limit.
+     */
+    <T> CompletableFuture<T> scheduleStream(WriteTask<T> streamTask, long timeoutMillis) {
+        if(closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+        }
+        streamTask.setTimeout(timeoutMillis);
+        if(admit(streamQueue, streamTask, streamTask.getCompletableFuture())) {
+            dispatch(streamExecutor, this::processStreamTask, streamQueue, streamTask, streamTask.getCompletableFuture());
+        }
+        return streamTask.getCompletableFuture();
+    }
+
+    CompletableFuture<Void> scheduleMerge(Namespace namespace) {
+        if(closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+        }
+        try {
+            return CompletableFuture.runAsync(() -> processMergeTask(namespace), mergeExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Store is closed"));
+        }
+    }
+
+    /**
+     * Adds the task to the queue as per the overload policy, fails the future if the task is not admitted.
+     * @return true if the task was queued
+     */
+    private <E> boolean admit(BlockingQueue<E> queue, E task, CompletableFuture<?> completableFuture) {
+        boolean admitted;
+        if(config.getOverloadPolicy() == StoreConfig.OverloadPolicy.TIMEOUT) {
+            try {
+                admitted = queue.offer(task, config.getAdmissionTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                admitted = false;
+            }
+        } else {
+            admitted = queue.offer(task);
+        }
+        if(!admitted) {
+            completableFuture.completeExceptionally(new RejectedExecutionException("Store overloaded, queue is full"));
+        }
+        return admitted;
+    }
+
+    /**
+     * Hands a queued task over to the executor. If the store was closed after the task passed the closed check, the
+     * task is taken back out of the queue and its future fails, unless a thread already picked it up.
+     * @return true if the task was handed over
+     */
+    private <E> boolean dispatch(ExecutorService executor, Runnable processor, BlockingQueue<E> queue, E task, CompletableFuture<?> completableFuture) {
+        try {
+            executor.submit(processor);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if(queue.remove(task)) {
+                completableFuture.completeExceptionally(new RejectedExecutionException("Store is closed"));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drains the write queue, so all the writes queued since the last run are applied in one go by the writer thread.
+     */
     private void processWriteTask() {
-        synchronized (writeQueue) {
-            WriteTask writeTask = writeQueue.poll();
-            if(writeTask != null) {
-                writeTask.run();
-                writeTask.getCompletableFuture().complete(null);
+        WriteTask<?> writeTask;
+        while((writeTask = writeQueue.poll()) != null) {
+            if(writeTask.isExpired()) {
+                writeTask.getCompletableFuture().completeExceptionally(new TimeoutException("Write deadline passed while queued"));
+                continue;
             }
+            writeTask.run();
         }
     }
 
     private void processReadTask()  {
-        ReadTask readTask = readQueue.poll();
+        ReadTask<?> readTask = readQueue.poll();
+        if(readTask == null) {
+            return;
+        }
+        runReadTask(readTask);
+    }
+
+    private <T> void runReadTask(ReadTask<T> readTask) {
+        if(readTask.isExpired()) {
+            readTask.getCompletableFuture().completeExceptionally(new TimeoutException("Read deadline passed while queued"));
+            return;
+        }
         try {
-            String value = null;
-            if(readTask != null) {
-                value = readTask.call();
-                readTask.getCompletableFuture().complete(value);
-            }
+            readTask.getCompletableFuture().complete(readTask.call());
         } catch (Exception e) {
             readTask.getCompletableFuture().completeExceptionally(e);
         }
     }
 
-    public void submitMergeTask() {
-        keyValueStore.compactAndMerge();
+    private void processStreamTask() {
+        WriteTask<?> streamTask = streamQueue.poll();
+        if(streamTask == null) {
+            return;
+        }
+        if(streamTask.isExpired()) {
+            streamTask.getCompletableFuture().completeExceptionally(new TimeoutException("Write deadline passed while queued"));
+            return;
+        }
+        streamTask.run();
     }
 
+    private void processMergeTask(Namespace namespace) {
+        try {
+            // reads go first, the merge only starts once the read queue is short
+            while(readQueue.size() > config.getMaxQueuedReadsForCompaction() && !mergeExecutor.isShutdown()) {
+                Thread.sleep(MERGE_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        namespace.merge();
+    }
 
-
+    /**
+     * Stops accepting tasks, waits for the queued ones to finish and flushes the store to disk.
+     */
+    public void close() throws IOException, InterruptedException {
+        closed = true;
+        streamExecutor.shutdown();
+        streamExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        mergeExecutor.shutdown();
+        readExecutor.shutdown();
+        writeExecutor.shutdown();
+        readExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        writeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        mergeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        for(Namespace namespace: namespaces.values()) {
+            namespace.close();
+        }
+        scheduler.shutdown();
+    }
 }
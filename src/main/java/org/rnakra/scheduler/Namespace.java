@@ -0,0 +1,178 @@
+package org.rnakra.scheduler;
+
+import org.rnakra.core.KeyValueStore;
+import org.rnakra.core.StagedValue;
+import org.rnakra.core.StoreConfig;
+import org.rnakra.core.Watch;
+import org.rnakra.core.WatchCancelledException;
+import org.rnakra.core.WriteBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Namespace is a named key space of the store with its own data files, index, file size threshold and compaction
+ * policy, so a write heavy namespace rotates and compacts its files without touching the files of the others.
+ * Keys of different namespaces never collide. Namespaces are opened through {@link MasterTask}, and their tasks
+ * share the queues and executor pools of the MasterTask which opened them.
+ */
+public class Namespace {
+    private final String name;
+    private final StoreConfig config;
+    private final KeyValueStore keyValueStore;
+    private final MasterTask masterTask;
+    // a merge is queued or running, the compaction trigger does not queue another one
+    private final AtomicBoolean mergePending = new AtomicBoolean(false);
+
+    Namespace(String name, StoreConfig config, KeyValueStore keyValueStore, MasterTask masterTask) {
+        this.name = name;
+        this.config = config;
+        this.keyValueStore = keyValueStore;
+        this.masterTask = masterTask;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StoreConfig getConfig() {
+        return config;
+    }
+
+    public CompletableFuture<String> submitReadTask(String key) {
+        return submitReadTask(key, config.getReadDeadlineMillis());
+    }
+
+    /**
+     * @param timeoutMillis The read fails with a TimeoutException if it is still queued after this long, 0 means no deadline
+     */
+    public CompletableFuture<String> submitReadTask(String key, long timeoutMillis) {
+        return masterTask.scheduleRead(new ReadTask<>(key, store -> store.get(key), keyValueStore, new CompletableFuture<>()), timeoutMillis);
+    }
+
+    public CompletableFuture<Void> submitWriteTask(String key, String value) {
+        return submitWriteTask(key, value, config.getWriteDeadlineMillis());
+    }
+
+    /**
+     * @param timeoutMillis The put fails with a TimeoutException if it is still queued after this long, 0 means no deadline
+     */
+    public CompletableFuture<Void> submitWriteTask(String key, String value, long timeoutMillis) {
+        return masterTask.scheduleWrite(this, new WriteTask<>(key, value, keyValueStore, new CompletableFuture<>()), timeoutMillis);
+    }
+
+    /**
+     * Puts a value read from the stream, values above the blob threshold are written to a blob file by a stream
+     * thread first and never held in memory as a whole. The stream is not closed.
+     */
+    public CompletableFuture<Void> submitStreamWriteTask(String key, InputStream value) {
+        WriteTask<StagedValue> streamTask = new WriteTask<>(key, store -> store.stage(value), keyValueStore, new CompletableFuture<>());
+        return masterTask.scheduleStream(streamTask, config.getWriteDeadlineMillis()).thenCompose(stagedValue -> submitWriteTask(new WriteTask<Void>(key, store -> {
+            store.put(key, stagedValue);
+            return null;
+        }, keyValueStore, new CompletableFuture<>())).whenComplete((result, e) -> {
+            // the put was rejected or timed out, nothing will reference the blob
+            if(e != null) {
+                keyValueStore.discard(stagedValue);
+            }
+        }));
+    }
+
+    /**
+     * Opens a stream over the value of the key, completes with null if the key is not present.
+     * The caller should close the stream.
+     */
+    public CompletableFuture<InputStream> submitStreamReadTask(String key) {
+        return masterTask.scheduleRead(new ReadTask<>(key, store -> store.getStream(key), keyValueStore, new CompletableFuture<>()), config.getReadDeadlineMillis());
+    }
+
+    public CompletableFuture<Void> submitDeleteTask(String key) {
+        return submitWriteTask(new WriteTask<Void>(key, store -> {
+            store.delete(key);
+            return null;
+        }, keyValueStore, new CompletableFuture<>()));
+    }
+
+    /**
+     * Applies the puts and deletes of the batch atomically, the batch should not be modified after submitting.
+     */
+    public CompletableFuture<Void> submitWriteBatch(WriteBatch batch) {
+        return submitWriteTask(new WriteTask<Void>(null, store -> {
+            store.write(batch);
+            return null;
+        }, keyValueStore, new CompletableFuture<>()));
+    }
+
+    /**
+     * Atomically sets the value of the key if its current value is expected, null expected means absent.
+     */
+    public CompletableFuture<Boolean> submitCompareAndSetTask(String key, String expected, String newValue) {
+        return submitWriteTask(new WriteTask<>(key, store -> store.compareAndSet(key, expected, newValue), keyValueStore, new CompletableFuture<>()));
+    }
+
+    /**
+     * Atomically sets the value of the key if it is not present.
+     */
+    public CompletableFuture<Boolean> submitPutIfAbsentTask(String key, String value) {
+        return submitWriteTask(new WriteTask<>(key, store -> store.putIfAbsent(key, value), keyValueStore, new CompletableFuture<>()));
+    }
+
+    /**
+     * Atomically adds delta to the numeric value of the key, completes with the incremented value.
+     */
+    public CompletableFuture<Long> submitIncrementTask(String key, long delta) {
+        return submitWriteTask(new WriteTask<>(key, store -> store.increment(key, delta), keyValueStore, new CompletableFuture<>()));
+    }
+
+    /**
+     * Streams the committed puts and deletes to keys with the prefix, straight from the commit path of the writer
+     * without going through the queues.
+     * @param fromSequence Sequence of the first change to deliver, negative to start at the next change
+     * @throws WatchCancelledException if changes from fromSequence are no longer held
+     */
+    public Watch watch(String prefix, long fromSequence) throws WatchCancelledException {
+        return keyValueStore.watch(prefix, fromSequence);
+    }
+
+    /**
+     * Queues a merge of the files of this namespace, whatever the compaction policy, the future completes once it has run.
+     */
+    public CompletableFuture<Void> submitMergeTask() {
+        mergePending.set(true);
+        return masterTask.scheduleMerge(this);
+    }
+
+    public boolean isMergeInProgress() {
+        return keyValueStore.isCompactionInProgress();
+    }
+
+    private <T> CompletableFuture<T> submitWriteTask(WriteTask<T> writeTask) {
+        return masterTask.scheduleWrite(this, writeTask, config.getWriteDeadlineMillis());
+    }
+
+    /**
+     * Called after every write is queued, queues a merge as per the compaction policy.
+     */
+    void afterWrite() {
+        if(config.getCompactionPolicy() != StoreConfig.CompactionPolicy.AUTO) {
+            return;
+        }
+        if(Math.random() < config.getCompactionTriggerRate() && mergePending.compareAndSet(false, true)) {
+            masterTask.scheduleMerge(this);
+        }
+    }
+
+    void merge() {
+        try {
+            keyValueStore.compactAndMerge();
+        } finally {
+            mergePending.set(false);
+        }
+    }
+
+    void close() throws IOException {
+        keyValueStore.close();
+    }
+}
@@ -5,30 +5,58 @@ import org.rnakra.core.KeyValueStore;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class ReadTask implements Callable<String> {
+/**
+ * ReadTask is a read of the store, run by one of the reader threads. An IOException is retried a few times.
+ * @param <T> Result of the read, the value for plain gets
+ */
+public class ReadTask<T> implements Callable<T> {
+
+    /**
+     * Read to run on the store.
+     */
+    public interface Operation<T> {
+        T apply(KeyValueStore keyValueStore) throws IOException;
+    }
 
     private String key;
+    private final Operation<T> operation;
     private final KeyValueStore keyValueStore;
 
     private int retryCount = 0;
 
-    private CompletableFuture<String> completableFuture;
+    private CompletableFuture<T> completableFuture;
+    private boolean hasDeadline = false;
+    private long deadlineNanos;
 
-    public ReadTask(String key, KeyValueStore keyValueStore, CompletableFuture<String> completableFuture) {
+    public ReadTask(String key, Operation<T> operation, KeyValueStore keyValueStore, CompletableFuture<T> completableFuture) {
         this.key = key;
+        this.operation = operation;
         this.keyValueStore = keyValueStore;
         this.completableFuture = completableFuture;
     }
 
-    public CompletableFuture<String> getCompletableFuture() {
+    public CompletableFuture<T> getCompletableFuture() {
         return completableFuture;
     }
 
+    /**
+     * The task is dropped if it is still queued once the timeout has elapsed, 0 means no deadline.
+     */
+    public void setTimeout(long timeoutMillis) {
+        hasDeadline = timeoutMillis > 0;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos > 0;
+    }
+
     @Override
-    public String call() throws Exception {
+    public T call() throws Exception {
         try {
-            return keyValueStore.get(key);
+            return operation.apply(keyValueStore);
         } catch (IOException e) {
             if(retryCount < 3) {
                 System.out.println("Retrying read for key:" + key);
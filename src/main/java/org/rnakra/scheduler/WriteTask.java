@@ -3,17 +3,40 @@ package org.rnakra.scheduler;
 import org.rnakra.core.KeyValueStore;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class WriteTask implements Runnable {
+/**
+ * WriteTask is a single mutation of the store, write tasks are executed one at a time by the single writer thread,
+ * so an operation which reads and then writes (compare and set, increment) is atomic with respect to all other writes.
+ * The tasks copying streamed values to blob files are the exception, they run on the stream threads.
+ * @param <T> Result of the operation, Void for plain puts
+ */
+public class WriteTask<T> implements Runnable {
+
+    /**
+     * Mutation to apply on the store.
+     */
+    public interface Operation<T> {
+        T apply(KeyValueStore keyValueStore) throws Exception;
+    }
 
     private final String key;
-    private final String value;
+    private final Operation<T> operation;
     private final KeyValueStore keyValueStore;
-    private final CompletableFuture<Void> completableFuture;
+    private final CompletableFuture<T> completableFuture;
+    private boolean hasDeadline = false;
+    private long deadlineNanos;
 
-    public WriteTask(String key, String value, KeyValueStore keyValueStore, CompletableFuture<Void> completableFuture) {
+    public WriteTask(String key, String value, KeyValueStore keyValueStore, CompletableFuture<T> completableFuture) {
+        this(key, store -> {
+            store.put(key, value);
+            return null;
+        }, keyValueStore, completableFuture);
+    }
+
+    public WriteTask(String key, Operation<T> operation, KeyValueStore keyValueStore, CompletableFuture<T> completableFuture) {
         this.key = key;
-        this.value = value;
+        this.operation = operation;
         this.keyValueStore = keyValueStore;
         this.completableFuture = completableFuture;
     }
@@ -21,13 +44,29 @@ public class WriteTask implements Runnable {
     @Override
     public void run() {
         try {
-            keyValueStore.put(key, value);
+            completableFuture.complete(operation.apply(keyValueStore));
         } catch (Exception e) {
             completableFuture.completeExceptionally(e);
         }
     }
 
-    public CompletableFuture<Void> getCompletableFuture() {
+    public String getKey() {
+        return key;
+    }
+
+    public CompletableFuture<T> getCompletableFuture() {
         return completableFuture;
     }
+
+    /**
+     * The task is dropped if it is still queued once the timeout has elapsed, 0 means no deadline.
+     */
+    public void setTimeout(long timeoutMillis) {
+        hasDeadline = timeoutMillis > 0;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos > 0;
+    }
 }
@@ -0,0 +1,122 @@
+package org.rnakra.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Recovery of the active data file after a crash. A crash is simulated by cutting bytes off the end of the file of a
+ * closed store, and corruption by flipping a byte in the middle of it.
+ */
+public class RecoveryTest {
+    // header of the data file followed by the entry of "a"="1": key size, value size, key, value
+    private static final int FIRST_BATCH_OFFSET = 21 + 8 + 1 + 1;
+    private static final int BATCH_HEADER_SIZE = 16;
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void dropsBatchTornAtTheTail() throws Exception {
+        checkTornTail(true);
+    }
+
+    @Test
+    public void dropsEntryTornAtTheTail() throws Exception {
+        checkTornTail(false);
+    }
+
+    /**
+     * The torn record is dropped, and writes made after the restart survive the next restart instead of being hidden
+     * behind the torn record.
+     */
+    private void checkTornTail(boolean batch) throws Exception {
+        StoreConfig config = config();
+        KeyValueStoreImpl store = new KeyValueStoreImpl(config);
+        store.put("a", "1");
+        if(batch) {
+            store.write(new WriteBatch().put("b", "2").put("c", "3"));
+        } else {
+            store.put("b", "2");
+        }
+        store.close();
+
+        File dataFile = lastDataFile();
+        try(RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        store = new KeyValueStoreImpl(config);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+        store.put("d", "4");
+        store.close();
+
+        store = new KeyValueStoreImpl(config);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals("4", store.get("d"));
+        store.close();
+    }
+
+    /**
+     * A batch which fails its checksum with records after it is corruption rather than a torn write: the batch is
+     * dropped as a whole, the records after it are kept, and the file is not truncated.
+     */
+    @Test
+    public void skipsCorruptBatchInTheMiddleOfTheFile() throws Exception {
+        StoreConfig config = config();
+        KeyValueStoreImpl store = new KeyValueStoreImpl(config);
+        store.put("a", "1");
+        store.write(new WriteBatch().put("b", "2").put("c", "3"));
+        store.put("d", "4");
+        store.close();
+
+        File dataFile = lastDataFile();
+        long length = dataFile.length();
+        flipByte(dataFile, FIRST_BATCH_OFFSET + BATCH_HEADER_SIZE + 9);
+
+        store = new KeyValueStoreImpl(config);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+        assertEquals("4", store.get("d"));
+        assertEquals(length, dataFile.length());
+        store.put("e", "5");
+        store.close();
+
+        store = new KeyValueStoreImpl(config);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals("4", store.get("d"));
+        assertEquals("5", store.get("e"));
+        store.close();
+    }
+
+    private StoreConfig config() {
+        return new StoreConfig().setDirectory(directory.getPath()).setDurabilityMode(StoreConfig.DurabilityMode.WRITE);
+    }
+
+    private File lastDataFile() {
+        File[] dataFiles = directory.listFiles((dir, fileName) -> fileName.endsWith(".db"));
+        return Arrays.stream(dataFiles).max(Comparator.comparing(File::getName)).orElseThrow();
+    }
+
+    private static void flipByte(File file, long offset) throws IOException {
+        try(RandomAccessFile storeFile = new RandomAccessFile(file, "rw")) {
+            storeFile.seek(offset);
+            int value = storeFile.read();
+            storeFile.seek(offset);
+            storeFile.write(value ^ 0xff);
+        }
+    }
+}